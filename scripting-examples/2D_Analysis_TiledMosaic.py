@@ -0,0 +1,35 @@
+#@LogService log
+#@File(label="Uncompressed TIFF mosaic") tiff_file
+#@int(label="Center X (pixels)", value=20000) xc
+#@int(label="Center Y (pixels)", value=20000) yc
+#@double(label="Lower threshold", value=88) lower_t
+#@double(label="Upper threshold", value=255) upper_t
+#@int(label="Tile size (pixels)", value=1024) tile_size
+
+'''
+    Sholl analysis of a 2D mosaic too large to be held in memory. The image is
+    read in tiles: each circle reads only the tiles it crosses, and tiles are
+    kept (thresholded, at 1 bit per pixel) in a cache of bounded size.
+'''
+from sholl.parsers import MappedTiffStack, TiledImageParser2D
+
+# Definitions for sampling distances (calibrated units)
+start_radius, step_size, end_radius = 100, 100, 10000
+
+stack = MappedTiffStack.open(tiff_file)
+try:
+    tiles = stack.getTileSource(1, tile_size, tile_size)
+    parser = TiledImageParser2D(tiles, stack.getCalibration())
+    parser.setCenterPx(xc, yc)
+    parser.setThreshold(lower_t, upper_t)
+    parser.setRadii(start_radius, step_size, end_radius)
+    parser.setTileCacheSize(256 * 1024 * 1024)
+    parser.parse()
+
+    if not parser.successful():
+        log.error("%s could not be parsed" % tiff_file.getName())
+    else:
+        for entry in parser.getProfile().entries():
+            log.info("r=%s: %s inters." % (entry.radius, entry.count))
+finally:
+    stack.close()
@@ -0,0 +1,41 @@
+#@Context context
+#@LogService log
+#@File(label="Uncompressed TIFF stack") tiff_file
+#@int(label="Center X (pixels)", value=100) xc
+#@int(label="Center Y (pixels)", value=100) yc
+#@int(label="Center Z (slice)", value=10) zc
+#@double(label="Lower threshold", value=88) lower_t
+#@double(label="Upper threshold", value=255) upper_t
+
+'''
+    Sholl analysis of a volume that may be larger than the available memory.
+    The TIFF is memory-mapped: ImageParser3D thresholds voxels directly from
+    the mapped pages of the file, without loading the stack into the heap.
+    Only uncompressed, 8/16/32-bit grayscale TIFFs are supported.
+'''
+from sholl.parsers import ImageParser3D, MappedTiffStack
+
+# Definitions for sampling distances (calibrated units)
+start_radius, step_size, end_radius = 10, 10, 100
+
+stack = MappedTiffStack.open(tiff_file)
+try:
+    imp = stack.getImagePlus()
+    log.info("%s: %s voxels, %s planes mapped" % (imp.getTitle(),
+             imp.getWidth() * imp.getHeight() * imp.getNSlices(), stack.getSize()))
+
+    parser = ImageParser3D(imp, context)
+    parser.setCenterPx(xc, yc, zc)
+    parser.setThreshold(lower_t, upper_t)
+    parser.setRadii(start_radius, step_size, end_radius)
+    parser.setHemiShells('none')
+    parser.parse()
+
+    if not parser.successful():
+        log.error("%s could not be parsed" % imp.getTitle())
+    else:
+        profile = parser.getProfile()
+        for entry in profile.entries():
+            log.info("r=%s: %s inters." % (entry.radius, entry.count))
+finally:
+    stack.close()
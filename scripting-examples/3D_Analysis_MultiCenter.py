@@ -0,0 +1,42 @@
+#@Context context
+#@ImagePlus imp
+#@LogService log
+#@double(label="Lower threshold", value=88) lower_t
+#@double(label="Upper threshold", value=255) upper_t
+
+'''
+    Sholl analysis of many neurons in a single pass. Centers are read from a
+    multi-point selection (one point per soma), or from the ROI Manager. The
+    stack is thresholded and traversed once: each voxel is binned against the
+    centers whose bounds contain it, so profiles are identical to those of
+    separate analyses of each center.
+'''
+import jarray
+from ij.gui import Roi
+from ij.plugin.frame import RoiManager
+from sholl.parsers import ImageParser3D
+
+# Definitions for sampling distances (calibrated units)
+start_radius, step_size, end_radius = 10, 10, 100
+
+rm = RoiManager.getInstance()
+if rm and rm.getCount() > 0:
+    rois = rm.getRoisAsArray()
+else:
+    rois = jarray.array([imp.getRoi()], Roi)
+if rois[0] is None:
+    log.error("A multi-point selection or a populated ROI Manager is required")
+else:
+    parser = ImageParser3D(imp, context)
+    parser.setThreshold(lower_t, upper_t)
+    parser.setCenters(rois)
+    parser.setRadii(start_radius, step_size, end_radius)
+    parser.parse()
+
+    if not parser.successful():
+        log.error("%s could not be parsed" % imp.getTitle())
+    else:
+        for profile in parser.getProfiles():
+            center = profile.center()
+            counts = [entry.count for entry in profile.entries()]
+            log.info("%s: %s inters. (max: %s)" % (center, sum(counts), max(counts)))
@@ -0,0 +1,74 @@
+#@Context context
+#@LogService log
+#@int(label="Number of shells", value=100) n_shells
+#@int(label="Timed runs per engine", value=5) n_runs
+
+'''
+    Compares the wall-clock time of the two ImageParser3D engines on a
+    synthetic (anisotropic) arbor: the shell-by-shell scan, which visits the
+    bounding box of every shell, and the single-pass scan, which visits the
+    volume once. Both engines must report identical profiles.
+'''
+from java.lang import System
+from java.util import Random
+from ij import ImagePlus, ImageStack
+from ij.process import ByteProcessor
+from sholl.parsers import ImageParser3D
+
+
+def synthetic_arbor(width, height, depth, n_branches, seed=42):
+    """Returns a binary stack of random-walk branches stemming from its center"""
+    stack = ImageStack(width, height)
+    for z in range(depth):
+        stack.addSlice(ByteProcessor(width, height))
+    rnd = Random(seed)
+    for b in range(n_branches):
+        x, y, z = width / 2.0, height / 2.0, depth / 2.0
+        dx, dy, dz = rnd.nextGaussian(), rnd.nextGaussian(), rnd.nextGaussian() / 3
+        for step in range(width):
+            dx, dy = dx + rnd.nextGaussian() / 4, dy + rnd.nextGaussian() / 4
+            dz = dz + rnd.nextGaussian() / 12
+            x, y, z = x + dx / 2, y + dy / 2, z + dz / 2
+            if not (1 <= x < width - 1 and 1 <= y < height - 1 and 0 <= z < depth):
+                break
+            ip = stack.getProcessor(int(z) + 1)
+            for ox in (-1, 0, 1):
+                for oy in (-1, 0, 1):
+                    ip.set(int(x) + ox, int(y) + oy, 255)
+    imp = ImagePlus("Synthetic arbor", stack)
+    cal = imp.getCalibration()
+    cal.pixelWidth, cal.pixelHeight, cal.pixelDepth = 0.3, 0.3, 1.0
+    return imp
+
+
+def parse(imp, single_pass):
+    """Parses imp and returns the elapsed time (ms) and the intersection counts"""
+    parser = ImageParser3D(imp, context)
+    parser.setCenterPx(imp.getWidth() / 2, imp.getHeight() / 2, imp.getNSlices() / 2)
+    parser.setThreshold(1, 255)
+    max_radius = imp.getWidth() / 2 * imp.getCalibration().pixelWidth
+    parser.setRadii(0, max_radius / n_shells, max_radius)
+    parser.setSinglePass(single_pass)
+    start = System.nanoTime()
+    parser.parse()
+    elapsed = (System.nanoTime() - start) / 1e6
+    return elapsed, list(parser.getProfile().countsAsArray())
+
+
+imp = synthetic_arbor(512, 512, 64, 24)
+results = {}
+for single_pass in (False, True):
+    parse(imp, single_pass)  # warm-up
+    timings = []
+    for run in range(n_runs):
+        elapsed, counts = parse(imp, single_pass)
+        timings.append(elapsed)
+    results[single_pass] = counts
+    label = "single-pass" if single_pass else "shell-by-shell"
+    log.info("%s: best %.0f ms, mean %.0f ms (%s runs)" % (label, min(timings),
+             sum(timings) / len(timings), n_runs))
+
+if results[False] != results[True]:
+    log.error("Engines reported different profiles!")
+else:
+    log.info("Profiles are identical (%s shells)" % len(results[True]))
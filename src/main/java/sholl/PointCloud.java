@@ -0,0 +1,297 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ij.measure.Calibration;
+
+/**
+ * Compact set of (single precision) 3D points, typically the intersection
+ * points of a Sholl shell. Coordinates are packed as consecutive (x, y, z)
+ * triplets in a primitive array and de-duplicated by value. Points can be
+ * accessed by index without boxing: {@link #iterator()} creates a new
+ * {@link UPoint} for each point, so modifying iterated points has no effect on
+ * the set.
+ *
+ * @author Tiago Ferreira
+ */
+public class PointCloud extends AbstractSet<UPoint> {
+
+	private float[] xyz;
+	private int size;
+	private int[] table; // open addressing: (point index + 1), or 0 if empty
+	private int modCount;
+
+	/** Instantiates a new empty point cloud. */
+	public PointCloud() {
+		this(16);
+	}
+
+	/**
+	 * Instantiates a new empty point cloud.
+	 *
+	 * @param initialCapacity the initial number of points the cloud can hold
+	 *                        without being resized
+	 */
+	public PointCloud(final int initialCapacity) {
+		xyz = new float[3 * Math.max(1, initialCapacity)];
+		table = new int[tableSize(initialCapacity)];
+	}
+
+	/**
+	 * Instantiates a new point cloud from a collection of points.
+	 *
+	 * @param points the points to be added
+	 */
+	public PointCloud(final Collection<? extends UPoint> points) {
+		this(points.size());
+		addAll(points);
+	}
+
+	/**
+	 * Adds a point to this cloud.
+	 *
+	 * @return true, if the cloud did not already contain the point
+	 */
+	public boolean add(final double x, final double y, final double z) {
+		final float fx = normalize(x);
+		final float fy = normalize(y);
+		final float fz = normalize(z);
+		int slot = slot(fx, fy, fz);
+		for (int idx = table[slot]; idx != 0; idx = table[slot]) {
+			if (matches(idx - 1, fx, fy, fz))
+				return false;
+			slot = (slot + 1) & (table.length - 1);
+		}
+		if (3 * (size + 1) > xyz.length)
+			xyz = Arrays.copyOf(xyz, Math.max(3 * (size + 1), 2 * xyz.length));
+		xyz[3 * size] = fx;
+		xyz[3 * size + 1] = fy;
+		xyz[3 * size + 2] = fz;
+		table[slot] = ++size;
+		modCount++;
+		if (2 * size > table.length)
+			rehash();
+		return true;
+	}
+
+	@Override
+	public boolean add(final UPoint point) {
+		return add(point.x, point.y, point.z);
+	}
+
+	@Override
+	public boolean contains(final Object object) {
+		if (!(object instanceof UPoint))
+			return false;
+		final UPoint point = (UPoint) object;
+		return indexOf(point.x, point.y, point.z) >= 0;
+	}
+
+	/**
+	 * @return the index of the specified point, or -1 if the cloud does not
+	 *         contain it
+	 */
+	public int indexOf(final double x, final double y, final double z) {
+		final float fx = normalize(x);
+		final float fy = normalize(y);
+		final float fz = normalize(z);
+		int slot = slot(fx, fy, fz);
+		for (int idx = table[slot]; idx != 0; idx = table[slot]) {
+			if (matches(idx - 1, fx, fy, fz))
+				return idx - 1;
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean remove(final Object object) {
+		if (!(object instanceof UPoint))
+			return false;
+		final UPoint point = (UPoint) object;
+		final int idx = indexOf(point.x, point.y, point.z);
+		if (idx < 0)
+			return false;
+		removeAt(idx);
+		return true;
+	}
+
+	/* Moves the last point into the removed position */
+	private void removeAt(final int idx) {
+		size--;
+		System.arraycopy(xyz, 3 * size, xyz, 3 * idx, 3);
+		modCount++;
+		rehash();
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		Arrays.fill(table, 0);
+		modCount++;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/** @return the x-coordinate of the point at the specified index */
+	public double x(final int index) {
+		return xyz[3 * index];
+	}
+
+	/** @return the y-coordinate of the point at the specified index */
+	public double y(final int index) {
+		return xyz[3 * index + 1];
+	}
+
+	/** @return the z-coordinate of the point at the specified index */
+	public double z(final int index) {
+		return xyz[3 * index + 2];
+	}
+
+	/**
+	 * Scales all points in place.
+	 *
+	 * @param xScale the scaling factor for x-coordinates
+	 * @param yScale the scaling factor for y-coordinates
+	 * @param zScale the scaling factor for z-coordinates
+	 */
+	public void scale(final double xScale, final double yScale, final double zScale) {
+		for (int i = 0; i < 3 * size; i += 3) {
+			xyz[i] = normalize(xyz[i] * xScale);
+			xyz[i + 1] = normalize(xyz[i + 1] * yScale);
+			xyz[i + 2] = normalize(xyz[i + 2] * zScale);
+		}
+		modCount++;
+		rehash();
+	}
+
+	/**
+	 * Converts all points from pixel to calibrated coordinates.
+	 *
+	 * @param cal the spatial calibration
+	 */
+	public void scale(final Calibration cal) {
+		for (int i = 0; i < 3 * size; i += 3) {
+			xyz[i] = normalize(cal.getX(xyz[i]));
+			xyz[i + 1] = normalize(cal.getY(xyz[i + 1]));
+			xyz[i + 2] = normalize(cal.getZ(xyz[i + 2]));
+		}
+		modCount++;
+		rehash();
+	}
+
+	@Override
+	public Iterator<UPoint> iterator() {
+		return new Iterator<UPoint>() {
+
+			private int cursor;
+			private int last = -1;
+			private int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return cursor < size;
+			}
+
+			@Override
+			public UPoint next() {
+				if (expectedModCount != modCount)
+					throw new ConcurrentModificationException();
+				if (cursor >= size)
+					throw new NoSuchElementException();
+				last = cursor++;
+				return new UPoint(x(last), y(last), z(last));
+			}
+
+			@Override
+			public void remove() {
+				if (last < 0)
+					throw new IllegalStateException();
+				if (expectedModCount != modCount)
+					throw new ConcurrentModificationException();
+				removeAt(last);
+				cursor = last; // last point was moved into this position
+				last = -1;
+				expectedModCount = modCount;
+			}
+		};
+	}
+
+	/* Rebuilds the hash table, dropping points that became duplicated */
+	private void rehash() {
+		table = new int[tableSize(size)];
+		final int n = size;
+		size = 0;
+		for (int i = 0; i < n; i++) {
+			final float fx = xyz[3 * i];
+			final float fy = xyz[3 * i + 1];
+			final float fz = xyz[3 * i + 2];
+			int slot = slot(fx, fy, fz);
+			boolean duplicated = false;
+			for (int idx = table[slot]; idx != 0; idx = table[slot]) {
+				if (matches(idx - 1, fx, fy, fz)) {
+					duplicated = true;
+					break;
+				}
+				slot = (slot + 1) & (table.length - 1);
+			}
+			if (duplicated)
+				continue;
+			xyz[3 * size] = fx;
+			xyz[3 * size + 1] = fy;
+			xyz[3 * size + 2] = fz;
+			table[slot] = ++size;
+		}
+	}
+
+	private boolean matches(final int index, final float x, final float y, final float z) {
+		return xyz[3 * index] == x && xyz[3 * index + 1] == y && xyz[3 * index + 2] == z;
+	}
+
+	private int slot(final float x, final float y, final float z) {
+		int h = Float.floatToIntBits(x);
+		h = 31 * h + Float.floatToIntBits(y);
+		h = 31 * h + Float.floatToIntBits(z);
+		h *= 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (table.length - 1);
+	}
+
+	/* Converts to single precision, collapsing -0 into 0 */
+	private static float normalize(final double value) {
+		return (float) value + 0.0f;
+	}
+
+	private static int tableSize(final int capacity) {
+		return Integer.highestOneBit(Math.max(4, 2 * capacity - 1)) << 1;
+	}
+
+}
@@ -21,13 +21,16 @@
  */
 package sholl;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.TreeSet;
 
 import ij.ImagePlus;
 import ij.gui.Overlay;
@@ -37,13 +40,25 @@ import sholl.gui.ShollOverlay;
 import sholl.gui.ShollPlot;
 
 /**
- * Defines a Sholl profile
+ * Defines a Sholl profile. Radii and counts are stored in (radius-sorted)
+ * primitive arrays. Arrays handed out as views are shared until the profile is
+ * next modified, at which point they are copied (copy-on-write). Entries
+ * retrieved through {@link #entries()} are bound to the profile: Changes to
+ * their fields are applied to the arrays before these are next accessed. All
+ * methods modifying the profile are synchronized.
  *
  * @author Tiago Ferreira
  */
 public class Profile implements ProfileProperties {
 
-	private SortedSet<ProfileEntry> profile;
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private double[] radiusData;
+	private double[] countData;
+	private Object[] pointData;
+	private ProfileEntry[] entryData; // entries retrieved through entries()
+	private int size;
+	private boolean shared;
 	private UPoint center;
 	private Calibration cal = new Calibration();
 	private Properties properties;
@@ -70,7 +85,7 @@ public class Profile implements ProfileProperties {
 			throw new IllegalArgumentException("Lists cannot be empty and must have the same size");
 		initialize();
 		for (int i = 0; i < radii.size(); i++) {
-			profile.add(new ProfileEntry(radii.get(i), sampledInters.get(i)));
+			add(new ProfileEntry(radii.get(i), sampledInters.get(i)));
 		}
 
 	}
@@ -101,12 +116,16 @@ public class Profile implements ProfileProperties {
 		for (int i = 0; i < sampledData.length; i++) {
 			final double r = sampledData[i][0];
 			final double c = sampledData[i][1];
-			profile.add(new ProfileEntry(r, c));
+			add(new ProfileEntry(r, c));
 		}
 	}
 
 	private void initialize() {
-		profile = Collections.synchronizedSortedSet(new TreeSet<ProfileEntry>());
+		radiusData = new double[DEFAULT_CAPACITY];
+		countData = new double[DEFAULT_CAPACITY];
+		pointData = new Object[DEFAULT_CAPACITY];
+		size = 0;
+		shared = false;
 		properties = new Properties();
 	}
 
@@ -119,87 +138,355 @@ public class Profile implements ProfileProperties {
 	}
 
 	public ArrayList<Double> radii() {
-		final ArrayList<Double> radii = new ArrayList<>();
-		for (final ProfileEntry e : profile)
-			radii.add(e.radius);
-		return radii;
+		final double[] radii = radiiView();
+		final ArrayList<Double> list = new ArrayList<>(radii.length);
+		for (final double r : radii)
+			list.add(r);
+		return list;
 	}
 
 	public ArrayList<Double> radiiSquared() {
-		final ArrayList<Double> radii = new ArrayList<>();
-		for (final ProfileEntry e : profile)
-			radii.add(e.radius * e.radius);
-		return radii;
+		final double[] radii = radiiView();
+		final ArrayList<Double> list = new ArrayList<>(radii.length);
+		for (final double r : radii)
+			list.add(r * r);
+		return list;
 	}
 
 	public double[] radiiAsArray() {
-		return radii().stream().mapToDouble(d -> d).toArray();
+		return radiiView().clone();
+	}
+
+	/**
+	 * Returns the sampled radii without copying them.
+	 *
+	 * @return a read-only view of the (sorted) radii. The array must not be
+	 *         modified: It remains valid (i.e., unchanged) even if the profile
+	 *         is subsequently modified.
+	 */
+	public synchronized double[] radiiView() {
+		syncEntries();
+		trimToSize();
+		shared = true;
+		return radiusData;
 	}
 
 	public ArrayList<Double> counts() {
-		final ArrayList<Double> counts = new ArrayList<>();
-		for (final ProfileEntry e : profile)
-			counts.add(e.count);
-		return counts;
+		final double[] counts = countsView();
+		final ArrayList<Double> list = new ArrayList<>(counts.length);
+		for (final double c : counts)
+			list.add(c);
+		return list;
 	}
 
 	public double[] countsAsArray() {
-		return counts().stream().mapToDouble(d -> d).toArray();
+		return countsView().clone();
 	}
 
-	public ArrayList<Set<UPoint>> points() {
-		final ArrayList<Set<UPoint>> allPoints = new ArrayList<>();
-		for (final ProfileEntry e : profile)
-			allPoints.add(e.points);
+	/**
+	 * Returns the sampled intersection counts without copying them.
+	 *
+	 * @return a read-only view of the counts, in the same order of
+	 *         {@link #radiiView()}. The array must not be modified: It remains
+	 *         valid (i.e., unchanged) even if the profile is subsequently
+	 *         modified.
+	 */
+	public synchronized double[] countsView() {
+		syncEntries();
+		trimToSize();
+		shared = true;
+		return countData;
+	}
+
+	@SuppressWarnings("unchecked")
+	public synchronized ArrayList<Set<UPoint>> points() {
+		syncEntries();
+		final ArrayList<Set<UPoint>> allPoints = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			allPoints.add((Set<UPoint>) pointData[i]);
 		return allPoints;
 	}
 
-	public double getCountAtRadius(final double radius) {
+	public synchronized double getCountAtRadius(final double radius) {
+		syncEntries();
 		if (stepRadius == -1) stepRadius = calculateStepRadius();
-		for (final ProfileEntry entry : profile) {
-			if (entry.radius < radius + stepRadius && entry.radius >= radius - stepRadius) {
-				return entry.count;
+		for (int i = 0; i < size; i++) {
+			if (radiusData[i] < radius + stepRadius && radiusData[i] >= radius - stepRadius) {
+				return countData[i];
 			}
 		}
 		return Double.NaN;
 	}
 
-	public void trimZeroEntries() {
-		final Iterator<ProfileEntry> iter = profile.iterator();
-		while (iter.hasNext()) {
-			final ProfileEntry entry = iter.next();
-			if (entry.radius == 0 || entry.count == 0)
-				iter.remove();
-		}
+	public synchronized void trimZeroEntries() {
+		retainEntries(i -> radiusData[i] != 0 && countData[i] != 0);
+	}
+
+	public synchronized void trimNaNCounts() {
+		retainEntries(i -> !Double.isNaN(countData[i]));
 	}
 
-	public void trimNaNCounts() {
-		final Iterator<ProfileEntry> iter = profile.iterator();
-		while (iter.hasNext()) {
-			if (Double.isNaN(iter.next().count))
-				iter.remove();
+	/**
+	 * Removes all entries associated with radii larger than the specified one.
+	 *
+	 * @param radius the largest radius to be kept
+	 */
+	public synchronized void trimEntriesAbove(final double radius) {
+		retainEntries(i -> radiusData[i] <= radius);
+	}
+
+	/* Compacts the arrays, keeping only entries passing the filter */
+	private void retainEntries(final java.util.function.IntPredicate filter) {
+		syncEntries();
+		ensureWritable();
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (!filter.test(i))
+				continue;
+			radiusData[n] = radiusData[i];
+			countData[n] = countData[i];
+			if (entryData != null)
+				entryData[n] = entryData[i];
+			pointData[n++] = pointData[i];
 		}
+		Arrays.fill(pointData, n, size, null);
+		if (entryData != null)
+			Arrays.fill(entryData, n, size, null);
+		if (n != size)
+			stepRadius = -1;
+		size = n;
 	}
 
-	public void scale(final double xScale, final double yScale, final double zScale) {
+	@SuppressWarnings("unchecked")
+	public synchronized void scale(final double xScale, final double yScale, final double zScale) {
 		final double isotropicScale = Math.cbrt(xScale * yScale * zScale);
 		if (Double.isNaN(isotropicScale) || isotropicScale <= 0)
 			throw new IllegalArgumentException("Invalid scaling factors");
-		final Iterator<ProfileEntry> iter = profile.iterator();
+		syncEntries();
+		ensureWritable();
 		if (center != null)
 			center.scale(xScale, yScale, zScale);
-		while (iter.hasNext()) {
-			final ProfileEntry entry = iter.next();
-			entry.radius *= isotropicScale;
-			if (entry.points == null)
+		for (int i = 0; i < size; i++) {
+			radiusData[i] *= isotropicScale;
+			if (pointData[i] == null)
 				continue;
-			for (final UPoint point : entry.points)
+			final Set<UPoint> points = (Set<UPoint>) pointData[i];
+			if (points instanceof PointCloud) {
+				((PointCloud) points).scale(xScale, yScale, zScale);
+				continue;
+			}
+			final List<UPoint> scaled = new ArrayList<>(points);
+			for (final UPoint point : scaled)
 				point.scale(xScale, yScale, zScale);
+			// re-insert mutated points under their new hashes
+			points.clear();
+			points.addAll(scaled);
 		}
+		stepRadius = -1;
+		updateEntries();
 	}
 
+	/**
+	 * Returns the profile entries.
+	 *
+	 * @return a read-only, sorted view of the profile entries that reflects
+	 *         subsequent changes to the profile. Entries cannot be added or
+	 *         removed through the view, but changes to the fields of retrieved
+	 *         entries are written through to the profile.
+	 */
 	public SortedSet<ProfileEntry> entries() {
-		return profile;
+		return new EntriesView(Double.NaN, Double.NaN);
+	}
+
+	/* Retrieves the (bound) entry at the specified index */
+	@SuppressWarnings("unchecked")
+	private ProfileEntry entryAt(final int i) {
+		if (entryData == null)
+			entryData = new ProfileEntry[Math.max(DEFAULT_CAPACITY, size)];
+		if (entryData[i] == null)
+			entryData[i] = new ProfileEntry(radiusData[i], countData[i], (Set<UPoint>) pointData[i]);
+		return entryData[i];
+	}
+
+	/* Applies changes made to the fields of bound entries to the arrays */
+	private void syncEntries() {
+		if (entryData == null)
+			return;
+		boolean unsorted = false;
+		for (int i = 0; i < size; i++) {
+			final ProfileEntry e = entryData[i];
+			if (e == null || (Double.compare(e.radius, radiusData[i]) == 0
+					&& Double.compare(e.count, countData[i]) == 0 && e.points == pointData[i]))
+				continue;
+			ensureWritable();
+			unsorted |= Double.compare(e.radius, radiusData[i]) != 0;
+			radiusData[i] = e.radius;
+			countData[i] = e.count;
+			pointData[i] = e.points;
+			stepRadius = -1;
+		}
+		if (unsorted)
+			sortByRadius();
+	}
+
+	/* Reflects changes made to the arrays in bound entries */
+	@SuppressWarnings("unchecked")
+	private void updateEntries() {
+		if (entryData == null)
+			return;
+		for (int i = 0; i < size; i++) {
+			final ProfileEntry e = entryData[i];
+			if (e == null)
+				continue;
+			e.radius = radiusData[i];
+			e.count = countData[i];
+			e.points = (Set<UPoint>) pointData[i];
+		}
+	}
+
+	/* Restores radius order after radii were edited through bound entries */
+	private void sortByRadius() {
+		final Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Double.compare(radiusData[a], radiusData[b]));
+		final double[] radii = new double[radiusData.length];
+		final double[] counts = new double[radiusData.length];
+		final Object[] points = new Object[radiusData.length];
+		final ProfileEntry[] entries = new ProfileEntry[entryData.length];
+		for (int i = 0; i < size; i++) {
+			radii[i] = radiusData[order[i]];
+			counts[i] = countData[order[i]];
+			points[i] = pointData[order[i]];
+			entries[i] = entryData[order[i]];
+		}
+		radiusData = radii;
+		countData = counts;
+		pointData = points;
+		entryData = entries;
+		shared = false;
+	}
+
+	/* Index of the first entry whose radius is not smaller than radius */
+	private int indexOf(final double radius) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (Double.compare(radiusData[mid], radius) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/*
+	 * Read-only view of the entries with radii in [from, to). NaN bounds are
+	 * unbounded. Iterators traverse the entries present at their creation
+	 */
+	private final class EntriesView extends AbstractSet<ProfileEntry> implements SortedSet<ProfileEntry> {
+
+		private final double from;
+		private final double to;
+
+		EntriesView(final double from, final double to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/* Must be called while holding the profile lock */
+		private int lo() {
+			return Double.isNaN(from) ? 0 : indexOf(from);
+		}
+
+		private int hi() {
+			return Math.max(lo(), Double.isNaN(to) ? size : indexOf(to));
+		}
+
+		@Override
+		public Iterator<ProfileEntry> iterator() {
+			final ProfileEntry[] entries;
+			synchronized (Profile.this) {
+				syncEntries();
+				final int lo = lo();
+				entries = new ProfileEntry[hi() - lo];
+				for (int i = 0; i < entries.length; i++)
+					entries[i] = entryAt(lo + i);
+			}
+			return Collections.unmodifiableList(Arrays.asList(entries)).iterator();
+		}
+
+		@Override
+		public int size() {
+			synchronized (Profile.this) {
+				syncEntries();
+				return hi() - lo();
+			}
+		}
+
+		@Override
+		public boolean contains(final Object o) {
+			if (!(o instanceof ProfileEntry))
+				return false;
+			final double radius = ((ProfileEntry) o).radius;
+			if ((!Double.isNaN(from) && Double.compare(radius, from) < 0)
+					|| (!Double.isNaN(to) && Double.compare(radius, to) >= 0))
+				return false;
+			synchronized (Profile.this) {
+				syncEntries();
+				final int i = indexOf(radius);
+				return i < size && Double.compare(radiusData[i], radius) == 0;
+			}
+		}
+
+		@Override
+		public java.util.Comparator<? super ProfileEntry> comparator() {
+			return null; // natural ordering
+		}
+
+		@Override
+		public SortedSet<ProfileEntry> subSet(final ProfileEntry fromElement, final ProfileEntry toElement) {
+			return new EntriesView(lowerBound(fromElement.radius), upperBound(toElement.radius));
+		}
+
+		@Override
+		public SortedSet<ProfileEntry> headSet(final ProfileEntry toElement) {
+			return new EntriesView(from, upperBound(toElement.radius));
+		}
+
+		@Override
+		public SortedSet<ProfileEntry> tailSet(final ProfileEntry fromElement) {
+			return new EntriesView(lowerBound(fromElement.radius), to);
+		}
+
+		private double lowerBound(final double radius) {
+			return Double.isNaN(from) ? radius : Math.max(from, radius);
+		}
+
+		private double upperBound(final double radius) {
+			return Double.isNaN(to) ? radius : Math.min(to, radius);
+		}
+
+		@Override
+		public ProfileEntry first() {
+			synchronized (Profile.this) {
+				syncEntries();
+				if (hi() == lo())
+					throw new NoSuchElementException();
+				return entryAt(lo());
+			}
+		}
+
+		@Override
+		public ProfileEntry last() {
+			synchronized (Profile.this) {
+				syncEntries();
+				if (hi() == lo())
+					throw new NoSuchElementException();
+				return entryAt(hi() - 1);
+			}
+		}
 	}
 
 	public String source() {
@@ -218,6 +505,17 @@ public class Profile implements ProfileProperties {
 		return nDimensions() == 2;
 	}
 
+	/**
+	 * Checks whether this profile is partial, i.e., whether parsing was
+	 * cancelled or ran out of time before all shells were sampled.
+	 *
+	 * @return true if the profile is flagged as incomplete. The reason is
+	 *         stored under {@link #KEY_STOP_REASON}
+	 */
+	public boolean isIncomplete() {
+		return Boolean.parseBoolean(properties.getProperty(KEY_INCOMPLETE, "false"));
+	}
+
 	public void setNDimensions(final int twoDthreeD) {
 		switch (twoDthreeD) {
 		case 1:
@@ -235,9 +533,11 @@ public class Profile implements ProfileProperties {
 		return cal != null && cal.scaled() && !String.valueOf(Double.NaN).equals(cal.getUnit());
 	}
 
-	public boolean hasPoints() {
-		for (final Iterator<ProfileEntry> it = profile.iterator(); it.hasNext();) {
-			final Set<UPoint> entryPoints = it.next().points;
+	@SuppressWarnings("unchecked")
+	public synchronized boolean hasPoints() {
+		syncEntries();
+		for (int i = 0; i < size; i++) {
+			final Set<UPoint> entryPoints = (Set<UPoint>) pointData[i];
 			if (entryPoints != null && entryPoints.size() > 0)
 				return true;
 		}
@@ -269,33 +569,35 @@ public class Profile implements ProfileProperties {
 		return list;
 	}
 
-	public int size() {
-		return profile.size();
+	public synchronized int size() {
+		return size;
 	}
 
-	public double startRadius() {
-		return profile.first().radius;
+	public synchronized double startRadius() {
+		syncEntries();
+		if (size == 0)
+			throw new NoSuchElementException();
+		return radiusData[0];
 	}
 
-	public double stepSize() {
+	public synchronized double stepSize() {
+		syncEntries();
 		if (stepRadius == -1) stepRadius = calculateStepRadius();
 		return stepRadius;
 	}
 
 	private double calculateStepRadius() {
 		double stepSize = 0;
-		ProfileEntry previousEntry = null;
-		for (final Iterator<ProfileEntry> it = profile.iterator(); it.hasNext();) {
-			final ProfileEntry currentEntry = it.next();
-			if (previousEntry != null)
-				stepSize += currentEntry.radius - previousEntry.radius;
-			previousEntry = currentEntry;
-		}
-		return stepSize / profile.size();
+		for (int i = 1; i < size; i++)
+			stepSize += radiusData[i] - radiusData[i - 1];
+		return stepSize / size;
 	}
 
-	public double endRadius() {
-		return profile.last().radius;
+	public synchronized double endRadius() {
+		syncEntries();
+		if (size == 0)
+			throw new NoSuchElementException();
+		return radiusData[size - 1];
 	}
 
 	public Calibration spatialCalibration() {
@@ -374,24 +676,143 @@ public class Profile implements ProfileProperties {
 		return so.getOverlay();
 	}
 
-	public boolean add(final ProfileEntry entry) {
-		final boolean result = profile.add(entry);
-		if (result) stepRadius = -1;
-		return result;
+	/**
+	 * Adds an entry to this profile.
+	 *
+	 * @param entry the entry to be added
+	 * @return true, if successful, false if the profile already contains an
+	 *         entry with the same radius
+	 */
+	public synchronized boolean add(final ProfileEntry entry) {
+		syncEntries();
+		int idx = size;
+		if (size > 0 && Double.compare(entry.radius, radiusData[size - 1]) <= 0) {
+			idx = Arrays.binarySearch(radiusData, 0, size, entry.radius);
+			if (idx >= 0 && Double.compare(entry.radius, radiusData[idx]) == 0)
+				return false;
+			idx = -(idx + 1);
+		}
+		ensureWritable();
+		ensureCapacity(size + 1);
+		System.arraycopy(radiusData, idx, radiusData, idx + 1, size - idx);
+		System.arraycopy(countData, idx, countData, idx + 1, size - idx);
+		System.arraycopy(pointData, idx, pointData, idx + 1, size - idx);
+		if (entryData != null) {
+			if (entryData.length <= size)
+				entryData = Arrays.copyOf(entryData, Math.max(size + 1, entryData.length * 2));
+			System.arraycopy(entryData, idx, entryData, idx + 1, size - idx);
+			entryData[idx] = null;
+		}
+		radiusData[idx] = entry.radius;
+		countData[idx] = entry.count;
+		pointData[idx] = entry.points;
+		size++;
+		stepRadius = -1;
+		return true;
+	}
+
+	/**
+	 * Merges the entries of another profile into this one. This is typically
+	 * used to combine profile fragments accumulated by different threads.
+	 * Entries whose radius already exists in this profile are ignored.
+	 *
+	 * @param fragment the profile to be merged
+	 * @return true, if this profile was modified
+	 */
+	public boolean merge(final Profile fragment) {
+		if (fragment == null || fragment == this)
+			return false;
+		final double[] fRadii, fCounts;
+		final Object[] fPoints;
+		final int fSize;
+		synchronized (fragment) {
+			fragment.syncEntries();
+			fSize = fragment.size;
+			fRadii = Arrays.copyOf(fragment.radiusData, fSize);
+			fCounts = Arrays.copyOf(fragment.countData, fSize);
+			fPoints = Arrays.copyOf(fragment.pointData, fSize);
+		}
+		if (fSize == 0)
+			return false;
+		synchronized (this) {
+			syncEntries();
+			// Linear merge of two sorted sequences into new arrays
+			final int capacity = Math.max(DEFAULT_CAPACITY, size + fSize);
+			final double[] radii = new double[capacity];
+			final double[] counts = new double[capacity];
+			final Object[] points = new Object[capacity];
+			final ProfileEntry[] entries = (entryData == null) ? null : new ProfileEntry[capacity];
+			int i = 0, j = 0, n = 0;
+			while (i < size || j < fSize) {
+				final int cmp = (i == size) ? 1 : (j == fSize) ? -1 : Double.compare(radiusData[i], fRadii[j]);
+				if (cmp <= 0) {
+					if (entries != null)
+						entries[n] = entryData[i];
+					radii[n] = radiusData[i];
+					counts[n] = countData[i];
+					points[n++] = pointData[i++];
+					if (cmp == 0)
+						j++; // duplicated radius: keep existing entry
+				} else {
+					radii[n] = fRadii[j];
+					counts[n] = fCounts[j];
+					points[n++] = fPoints[j++];
+				}
+			}
+			final boolean modified = n != size;
+			radiusData = radii;
+			countData = counts;
+			pointData = points;
+			entryData = entries;
+			size = n;
+			shared = false;
+			stepRadius = -1;
+			return modified;
+		}
+	}
+
+	/* Copies shared arrays before any modification (copy-on-write) */
+	private void ensureWritable() {
+		if (!shared)
+			return;
+		final int capacity = Math.max(DEFAULT_CAPACITY, radiusData.length);
+		radiusData = Arrays.copyOf(radiusData, capacity);
+		countData = Arrays.copyOf(countData, capacity);
+		pointData = Arrays.copyOf(pointData, capacity);
+		shared = false;
+	}
+
+	private void ensureCapacity(final int minCapacity) {
+		if (minCapacity <= radiusData.length)
+			return;
+		final int capacity = Math.max(minCapacity, radiusData.length * 2);
+		radiusData = Arrays.copyOf(radiusData, capacity);
+		countData = Arrays.copyOf(countData, capacity);
+		pointData = Arrays.copyOf(pointData, capacity);
+	}
+
+	private void trimToSize() {
+		if (radiusData.length == size)
+			return;
+		if (shared) // views cannot be trimmed in place
+			ensureWritable();
+		radiusData = Arrays.copyOf(radiusData, size);
+		countData = Arrays.copyOf(countData, size);
+		pointData = Arrays.copyOf(pointData, size);
 	}
 
-	public int zeroCounts() {
-		final Iterator<ProfileEntry> iter = profile.iterator();
+	public synchronized int zeroCounts() {
+		syncEntries();
 		int count = 0;
-		while (iter.hasNext()) {
-			if (iter.next().count == 0)
+		for (int i = 0; i < size; i++) {
+			if (countData[i] == 0)
 				count++;
 		}
 		return count;
 	}
 
 	public boolean isEmpty() {
-		return profile == null || profile.size() == zeroCounts();
+		return size() == zeroCounts();
 	}
 
 	@Override
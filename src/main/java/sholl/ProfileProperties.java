@@ -40,6 +40,9 @@ public interface ProfileProperties {
 	final String KEY_SLICE_POS = "slice";
 	final String KEY_FRAME_POS = "frame";
 	final String KEY_THRESHOLD_RANGE = "threshold-range";
+	final String KEY_STOP_RADIUS = "stop-radius";
+	final String KEY_STOP_REASON = "stop-reason";
+	final String KEY_INCOMPLETE = "incomplete";
 
 	final String SRC_TABLE = "table";
 	final String SRC_TRACES = "tracings";
@@ -55,6 +58,12 @@ public interface ProfileProperties {
 	final String INTG_MEDIAN = "median";
 	final String INTG_MODE = "mode";
 
+	final String STOP_END_RADIUS = "end-radius";
+	final String STOP_EMPTY_SHELLS = "empty-shells";
+	final String STOP_NO_FOREGROUND = "no-foreground";
+	final String STOP_TIME_BUDGET = "time-budget";
+	final String STOP_CANCELLED = "cancelled";
+
 	final String UNSET = "?";
 
 }
@@ -21,6 +21,7 @@
  */
 package sholl;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -146,12 +147,21 @@ public class UPoint {
 	}
 
 	public static void scale(final Set<UPoint> set, final Calibration cal) {
+		if (set instanceof PointCloud) {
+			((PointCloud) set).scale(cal);
+			return;
+		}
+		final List<UPoint> points = new ArrayList<>(set.size());
 		for (final Iterator<UPoint> it = set.iterator(); it.hasNext();) {
 			final UPoint point = it.next();
 			point.x = cal.getX(point.x);
 			point.y = cal.getY(point.y);
 			point.z = cal.getZ(point.z);
+			points.add(point);
 		}
+		// points were mutated in place: re-insert them under their new hashes
+		set.clear();
+		set.addAll(points);
 	}
 
 	protected static UPoint fromString(final String string) {
@@ -209,6 +219,9 @@ public class UPoint {
 
 	@Override
 	public int hashCode() {
-		return super.hashCode();
+		// adding 0.0 collapses -0.0 into 0.0, consistently with equals()
+		int hash = Double.hashCode(x + 0.0);
+		hash = 31 * hash + Double.hashCode(y + 0.0);
+		return 31 * hash + Double.hashCode(z + 0.0);
 	}
 }
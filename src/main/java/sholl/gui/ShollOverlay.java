@@ -45,6 +45,7 @@ import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.gui.ShapeRoi;
 import ij.measure.Calibration;
+import sholl.PointCloud;
 import sholl.Profile;
 import sholl.ProfileEntry;
 import sholl.ProfileProperties;
@@ -205,12 +206,15 @@ public class ShollOverlay implements ProfileProperties {
 			final Set<UPoint> ePoints = entry.points;
 			if (ePoints == null || ePoints.isEmpty())
 				continue;
+			// iterate by index: avoids boxing every point of a PointCloud
+			final PointCloud cloud = (ePoints instanceof PointCloud) ? (PointCloud) ePoints
+					: new PointCloud(ePoints);
 			PointRoi multipointRoi = null;
 			double currentRawZ = -1;
-			for (final UPoint point : ePoints) {
-				final double rawX = point.rawX(cal);
-				final double rawY = point.rawY(cal);
-				final double rawZ = point.rawZ(cal);
+			for (int i = 0; i < cloud.size(); i++) {
+				final double rawX = cal.getRawX(cloud.x(i));
+				final double rawY = cal.getRawY(cloud.y(i));
+				final double rawZ = cloud.z(i) / cal.pixelDepth + cal.zOrigin;
 				if (currentRawZ == -1 || currentRawZ != rawZ) {
 					multipointRoi = new PointRoi(rawX, rawY);
 					currentRawZ = rawZ;
@@ -220,7 +224,7 @@ public class ShollOverlay implements ProfileProperties {
 					multipointRoi.setPointType(2);
 					multipointRoi.setStrokeColor(baseColor);
 					multipointRoi.setName(
-							"ShollPoints r=" + formatter.format(entry.radius) + " z=" + formatter.format(point.z));
+							"ShollPoints r=" + formatter.format(entry.radius) + " z=" + formatter.format(cloud.z(i)));
 					setROIposition(multipointRoi, channel, rawZ, frame, hyperStack);
 					points.add(multipointRoi);
 				} else if (currentRawZ == rawZ && multipointRoi != null) { // same plane
@@ -377,7 +381,7 @@ public class ShollOverlay implements ProfileProperties {
 		String fProperty = COUNT;
 		if (property != null && property.toLowerCase().contains("radi")) // radi[i|us]
 			fProperty = RADIUS;
-		final double[] mappingValues = (RADIUS.equals(fProperty)) ? profile.radiiAsArray() : profile.countsAsArray();
+		final double[] mappingValues = (RADIUS.equals(fProperty)) ? profile.radiiView() : profile.countsView();
 		final double min = StatUtils.min(mappingValues);
 		final double max = StatUtils.max(mappingValues);
 		for (final Roi roi : rois) {
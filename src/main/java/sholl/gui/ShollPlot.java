@@ -85,7 +85,7 @@ public class ShollPlot extends Plot {
 		for (int i = 0; i < profiles.length; i++) {
 			final Profile p = profiles[i];
 			setColor(colors[i]);
-			addPoints(p.radii(), p.counts(), LINE);
+			addPoints(p.radiiView(), p.countsView(), LINE);
 			legend.append(p.identifier()).append("\n");
 		}
 		setLimitsToFit(false);
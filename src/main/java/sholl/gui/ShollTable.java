@@ -23,7 +23,6 @@ package sholl.gui;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
 import java.util.Properties;
 
 import org.scijava.Context;
@@ -84,10 +83,6 @@ public class ShollTable extends DefaultGenericTable {
 		this.stats = stats;
 	}
 
-	private void addCol(final String header, final List<Double> list) {
-		addCol(header, list.stream().mapToDouble(Double::doubleValue).toArray());
-	}
-
 	private void addCol(final String header, final double[] array) {
 		final DoubleColumn col = new DoubleColumn(header);
 		col.fill(array);
@@ -101,8 +96,8 @@ public class ShollTable extends DefaultGenericTable {
 	 */
 	public void listProfileEntries() {
 
-		addCol("Radius", profile.radii());
-		addCol("Inters.", profile.counts());
+		addCol("Radius", profile.radiiView());
+		addCol("Inters.", profile.countsView());
 
 		if (stats == null)
 			return;
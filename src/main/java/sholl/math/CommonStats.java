@@ -32,7 +32,6 @@ import org.scijava.command.ContextCommand;
 
 import sholl.Logger;
 import sholl.Profile;
-import sholl.ProfileEntry;
 import sholl.gui.ShollPlot;
 
 
@@ -64,14 +63,11 @@ class CommonStats extends ContextCommand implements ShollStats {
 			throw new IllegalArgumentException("Cannot instantiate analysis with an empty profile");
 
 		this.profile = profile;
-		nPoints = profile.size();
-		inputRadii = new double[nPoints];
-		inputCounts = new double[nPoints];
-		int idx = 0;
-		for (final ProfileEntry entry : profile.entries()) {
-			inputRadii[idx] = entry.radius;
-			inputCounts[idx++] = entry.count;
+		synchronized (profile) { // read-only views: no copies are made
+			inputRadii = profile.radiiView();
+			inputCounts = profile.countsView();
 		}
+		nPoints = inputRadii.length;
 	}
 
 	/**
@@ -175,12 +171,12 @@ class CommonStats extends ContextCommand implements ShollStats {
 	 */
 	@Override
 	public double[] getXvalues() {
-		return inputRadii;
+		return inputRadii.clone();
 	}
 
 	@Override
 	public double[] getYvalues() {
-		return inputCounts;
+		return inputCounts.clone();
 	}
 
 	@Override
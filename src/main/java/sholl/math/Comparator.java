@@ -49,8 +49,8 @@ public class Comparator extends ContextCommand {
 		this.profile1 = profile1;
 		this.profile2 = profile2;
 		nPoints = Math.min(profile1.size(), profile2.size());
-		p1Counts = profile1.countsAsArray();
-		p2Counts = profile2.countsAsArray();
+		p1Counts = profile1.countsView();
+		p2Counts = profile2.countsView();
 		regression = new SimpleRegression();
 		for (int i = 0; i < nPoints; i++)
 			regression.addData(p1Counts[i], p2Counts[i]);
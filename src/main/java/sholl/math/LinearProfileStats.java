@@ -489,7 +489,7 @@ public class LinearProfileStats extends CommonStats implements ShollStats {
 	 */
 	@Override
 	public double[] getXvalues() {
-		return inputRadii;
+		return inputRadii.clone();
 	}
 
 	/**
@@ -500,7 +500,7 @@ public class LinearProfileStats extends CommonStats implements ShollStats {
 	 */
 	@Override
 	public double[] getYvalues() {
-		return inputCounts;
+		return inputCounts.clone();
 	}
 
 	/**
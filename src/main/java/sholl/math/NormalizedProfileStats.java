@@ -118,7 +118,7 @@ public class NormalizedProfileStats extends CommonStats implements ShollStats {
 			chosenMethod = SEMI_LOG;
 			chosenMethodDescription = "Semi-log";
 			regressionChosen = regressionSemiLog;
-			regressionXdata = inputRadii;
+			regressionXdata = inputRadii.clone(); // never expose the profile view
 			break;
 		case LOG_LOG:
 			chosenMethod = LOG_LOG;
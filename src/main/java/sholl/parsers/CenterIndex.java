@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Spatial index of the bounds of multiple centers of analysis: A uniform grid
+ * in which each cell lists the centers whose bounds overlap it, so that the
+ * centers that may contain a voxel are retrieved without testing every
+ * center. Cells are half the size of the largest bounds, so that each center
+ * is listed in a few cells only. Within a cell, centers are listed in
+ * ascending order.
+ *
+ * @author Tiago Ferreira
+ */
+final class CenterIndex {
+
+	private final int minX, minY, minZ;
+	private final int cellW, cellH, cellD;
+	private final int nx, ny;
+	private final int[] start;
+	private final int[] members;
+
+	/**
+	 * @param boxes  the bounds of each center, as {minX, maxX, minY, maxY,
+	 *               minZ, maxZ}
+	 * @param bounds the union of all bounds, in the same format
+	 */
+	CenterIndex(final int[][] boxes, final int[] bounds) {
+		minX = bounds[0];
+		minY = bounds[2];
+		minZ = bounds[4];
+		int maxW = 1, maxH = 1, maxD = 1;
+		for (final int[] box : boxes) {
+			maxW = Math.max(maxW, box[1] - box[0] + 1);
+			maxH = Math.max(maxH, box[3] - box[2] + 1);
+			maxD = Math.max(maxD, box[5] - box[4] + 1);
+		}
+		cellW = Math.max(1, maxW / 2);
+		cellH = Math.max(1, maxH / 2);
+		cellD = Math.max(1, maxD / 2);
+		nx = (bounds[1] - minX) / cellW + 1;
+		ny = (bounds[3] - minY) / cellH + 1;
+		final int nz = (bounds[5] - minZ) / cellD + 1;
+
+		// Compressed lists: Count the centers of each cell, then fill them in
+		start = new int[nx * ny * nz + 1];
+		for (final int[] box : boxes)
+			forEachCell(box, cell -> start[cell + 1]++);
+		for (int c = 0; c < nx * ny * nz; c++)
+			start[c + 1] += start[c];
+		members = new int[start[start.length - 1]];
+		final int[] next = start.clone();
+		for (int i = 0; i < boxes.length; i++) {
+			final int center = i;
+			forEachCell(boxes[i], cell -> members[next[cell]++] = center);
+		}
+	}
+
+	private void forEachCell(final int[] box, final IntConsumer action) {
+		for (int cz = (box[4] - minZ) / cellD; cz <= (box[5] - minZ) / cellD; cz++)
+			for (int cy = (box[2] - minY) / cellH; cy <= (box[3] - minY) / cellH; cy++)
+				for (int cx = (box[0] - minX) / cellW; cx <= (box[1] - minX) / cellW; cx++)
+					action.accept((cz * ny + cy) * nx + cx);
+	}
+
+	/** @return the cell containing the specified voxel */
+	int cell(final int x, final int y, final int z) {
+		return (((z - minZ) / cellD) * ny + (y - minY) / cellH) * nx + (x - minX) / cellW;
+	}
+
+	/** @return the position of the first center listed in cell */
+	int first(final int cell) {
+		return start[cell];
+	}
+
+	/** @return the position after the last center listed in cell */
+	int end(final int cell) {
+		return start[cell + 1];
+	}
+
+	/** @return the center listed at the specified position */
+	int center(final int position) {
+		return members[position];
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Center-relative offsets of a Bresenham circumference, ordered around the
+ * circle and stored as consecutive (dx, dy) pairs. Instances are immutable and
+ * shared through a thread-safe cache keyed by radius.
+ *
+ * @author Tiago Ferreira
+ */
+final class CircleOffsets {
+
+	/* Upper bound on the number of cached offsets (8 bytes each) */
+	private static final long MAX_CACHED_POINTS = 4_000_000;
+	private static final ConcurrentHashMap<Integer, CircleOffsets> CACHE = new ConcurrentHashMap<>();
+	private static final AtomicLong cachedPoints = new AtomicLong();
+
+	private final int[] dxy;
+
+	private CircleOffsets(final int radius) {
+
+		// First 1/8 of the circumference, relative to center
+		int i = 0, x = 0, y = radius;
+		final int r = radius + 1;
+		int err = 0, errR, errD;
+		final int[] data = new int[2 * r];
+		do {
+			data[2 * i] = x;
+			data[2 * i++ + 1] = y;
+			errR = err + 2 * x + 1;
+			errD = err - 2 * y + 1;
+			if (Math.abs(errD) < Math.abs(errR)) {
+				y--;
+				err = errD; // Go down
+			} else {
+				x++;
+				err = errR; // Go right
+			}
+		} while (x <= y);
+
+		// Mirror it into the remaining 7/8 of the circumference
+		final int[] all = new int[16 * r];
+		for (i = 0; i < r; i++) {
+			x = data[2 * i];
+			y = data[2 * i + 1];
+			set(all, i, x, y);
+			set(all, r * 4 - i - 1, x, -y);
+			set(all, r * 8 - i - 1, -x, y);
+			set(all, r * 4 + i, -x, -y);
+			set(all, r * 2 - i - 1, y, x);
+			set(all, r * 2 + i, y, -x);
+			set(all, r * 6 + i, -y, x);
+			set(all, r * 6 - i - 1, -y, -x);
+		}
+
+		// Drop duplicates, which are always at multiples of r (8 points)
+		dxy = new int[16 * r - 16];
+		for (i = 0, x = 0; i < 8 * r; i++) {
+			if ((i + 1) % r == 0)
+				continue;
+			dxy[x++] = all[2 * i];
+			dxy[x++] = all[2 * i + 1];
+		}
+	}
+
+	private static void set(final int[] array, final int index, final int x, final int y) {
+		array[2 * index] = x;
+		array[2 * index + 1] = y;
+	}
+
+	/**
+	 * Retrieves the circumference offsets for the specified radius.
+	 *
+	 * @param radius the radius (in pixels)
+	 * @return the (possibly cached) offsets
+	 */
+	static CircleOffsets get(final int radius) {
+		if (radius < 0)
+			throw new IllegalArgumentException("radius cannot be negative");
+		CircleOffsets offsets = CACHE.get(radius);
+		if (offsets != null)
+			return offsets;
+		offsets = new CircleOffsets(radius);
+		final int n = offsets.size();
+		if (cachedPoints.addAndGet(n) <= MAX_CACHED_POINTS) {
+			final CircleOffsets existing = CACHE.putIfAbsent(radius, offsets);
+			if (existing != null) {
+				cachedPoints.addAndGet(-n);
+				return existing;
+			}
+		} else {
+			cachedPoints.addAndGet(-n); // cache is full: do not retain
+		}
+		return offsets;
+	}
+
+	/** @return the number of circumference points */
+	int size() {
+		return dxy.length / 2;
+	}
+
+	int dx(final int index) {
+		return dxy[2 * index];
+	}
+
+	int dy(final int index) {
+		return dxy[2 * index + 1];
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import ij.measure.Calibration;
+import sholl.UPoint;
+
+/**
+ * Calibrated distances from every pixel of an image to an analysis center.
+ * Distances are stored as separable tables of squared offsets along each
+ * axis, spanning the whole image rather than the region bounded by the
+ * ending radius, so that a map remains valid when sampling radii change:
+ * Only the binning of distances into shells needs to be redone. A quantized
+ * plane of XY distances is computed on demand, for re-binning pixels into
+ * 2D masks.
+ *
+ * @author Tiago Ferreira
+ */
+final class DistanceMap {
+
+	/* Finest quantization step, as a fraction of the smallest pixel side */
+	private static final int SUBDIVISIONS = 16;
+
+	private final int width, height, depth;
+	private final double cx, cy, cz;
+	private final double pw, ph, pd;
+	private final double xOrigin, yOrigin, zOrigin;
+	private final double[] xSq, ySq, zSq;
+	private final double quantum;
+	private char[] plane;
+
+	DistanceMap(final int width, final int height, final int depth, final Calibration cal, final UPoint center) {
+		if (width < 1 || height < 1 || depth < 1)
+			throw new IllegalArgumentException("Image dimensions must be > 0");
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		cx = center.x;
+		cy = center.y;
+		cz = center.z;
+		pw = cal.pixelWidth;
+		ph = cal.pixelHeight;
+		pd = cal.pixelDepth;
+		xOrigin = cal.xOrigin;
+		yOrigin = cal.yOrigin;
+		zOrigin = cal.zOrigin;
+
+		// NB: Squared distances must be summed as x + y + z, the same order
+		// used by UPoint#distanceSquared(), so that shell boundaries are
+		// resolved exactly
+		xSq = new double[width];
+		for (int x = 0; x < width; x++) {
+			final double dx = cal.getX(x) - cx;
+			xSq[x] = dx * dx;
+		}
+		ySq = new double[height];
+		for (int y = 0; y < height; y++) {
+			final double dy = cal.getY(y) - cy;
+			ySq[y] = dy * dy;
+		}
+		zSq = new double[depth];
+		for (int z = 0; z < depth; z++) {
+			final double dz = cal.getZ(z) - cz;
+			zSq[z] = dz * dz;
+		}
+
+		// Quantum: as fine as possible while keeping the farthest pixel of
+		// the plane representable as an unsigned 16-bit value
+		final double maxDistance = Math.sqrt(max(xSq) + max(ySq));
+		quantum = Math.max(Math.min(pw, ph) / SUBDIVISIONS, maxDistance / Character.MAX_VALUE);
+	}
+
+	private static double max(final double[] values) {
+		double max = 0;
+		for (final double v : values)
+			if (v > max) max = v;
+		return max;
+	}
+
+	/**
+	 * Checks whether this map can be reused for the specified image
+	 * dimensions, calibration and center.
+	 */
+	boolean matches(final int width, final int height, final int depth, final Calibration cal,
+			final UPoint center) {
+		return this.width == width && this.height == height && this.depth == depth && cx == center.x
+				&& cy == center.y && cz == center.z && pw == cal.pixelWidth && ph == cal.pixelHeight
+				&& pd == cal.pixelDepth && xOrigin == cal.xOrigin && yOrigin == cal.yOrigin
+				&& zOrigin == cal.zOrigin;
+	}
+
+	/** @return the squared calibrated distance along X of column x */
+	double xSq(final int x) {
+		return xSq[x];
+	}
+
+	/** @return the squared calibrated distance along Y of row y */
+	double ySq(final int y) {
+		return ySq[y];
+	}
+
+	/** @return the squared calibrated distance along Z of (0-based) slice z */
+	double zSq(final int z) {
+		return zSq[z];
+	}
+
+	/** @return the squared calibrated distance of voxel (x,y,z) to the center */
+	double distanceSquared(final int x, final int y, final int z) {
+		return xSq[x] + ySq[y] + zSq[z];
+	}
+
+	/** @return the calibrated length of one unit of the quantized plane */
+	double quantum() {
+		return quantum;
+	}
+
+	/**
+	 * Retrieves the XY distances of all pixels in the plane to the center
+	 * (ignoring Z), in units of {@link #quantum()}, indexed as
+	 * {@code y * width + x}. Values beyond range are saturated. The returned
+	 * array is shared and must not be modified.
+	 *
+	 * @return the quantized distances
+	 */
+	synchronized char[] plane() {
+		if (plane == null) {
+			final char[] p = new char[width * height];
+			for (int y = 0, i = 0; y < height; y++) {
+				for (int x = 0; x < width; x++, i++) {
+					final long q = Math.round(Math.sqrt(xSq[x] + ySq[y]) / quantum);
+					p[i] = (char) Math.min(q, Character.MAX_VALUE);
+				}
+			}
+			plane = p;
+		}
+		return plane;
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+/**
+ * Tracks runs of consecutive empty (zero-count) shells when radii are parsed
+ * from the inside out, possibly concurrently and out of order. Shells are
+ * evaluated in ascending order of radii as soon as all their inner shells
+ * have been parsed, so that the stop index does not depend on the order in
+ * which workers complete their shells.
+ *
+ * @author Tiago Ferreira
+ */
+final class EmptyShellTracker {
+
+	private final int maxEmptyShells;
+	private final byte[] state; // 0: pending; 1: parsed, non-empty; 2: parsed, empty
+	private int frontier;
+	private int run;
+	private volatile int limit;
+
+	/**
+	 * @param nShells        the number of shells, sorted by ascending radius
+	 * @param maxEmptyShells the number of consecutive empty shells after which
+	 *                       parsing should stop
+	 */
+	EmptyShellTracker(final int nShells, final int maxEmptyShells) {
+		if (maxEmptyShells < 1)
+			throw new IllegalArgumentException("Number of empty shells must be > 0");
+		this.maxEmptyShells = maxEmptyShells;
+		state = new byte[nShells];
+		limit = nShells - 1;
+	}
+
+	/**
+	 * Registers a parsed shell.
+	 *
+	 * @param index the index of the shell
+	 * @param empty whether the shell had no intersections
+	 */
+	synchronized void parsed(final int index, final boolean empty) {
+		state[index] = (byte) (empty ? 2 : 1);
+		while (frontier < state.length && frontier <= limit && state[frontier] != 0) {
+			run = (state[frontier] == 2) ? run + 1 : 0;
+			if (run == maxEmptyShells) {
+				limit = frontier;
+				return;
+			}
+			frontier++;
+		}
+	}
+
+	/**
+	 * @return the index of the outermost shell that should be parsed
+	 */
+	int limit() {
+		return limit;
+	}
+
+	/**
+	 * @return true if a run of empty shells has been detected
+	 */
+	synchronized boolean stopped() {
+		return run == maxEmptyShells;
+	}
+
+}
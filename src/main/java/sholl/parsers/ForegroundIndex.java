@@ -0,0 +1,281 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sparse index of the thresholded voxels of an image, sorted by their
+ * (calibrated) squared distance to the analysis center. The voxels
+ * intercepted by a shell form a contiguous range of the index, retrieved by
+ * bisection, so that parsers no longer need to visit background voxels, or
+ * to read the image at all. Indices are valid for a single image, channel,
+ * frame, threshold and center, and can be saved so that repeated analyses
+ * skip the thresholding of the image.
+ *
+ * @author Tiago Ferreira
+ * @see ImageParser#setIndexed(boolean)
+ */
+public final class ForegroundIndex {
+
+	private static final int MAGIC = 0x53484F49; // "SHOI"
+	private static final int VERSION = 1;
+
+	private final String key;
+	private final int width, height;
+	private final int minZ, maxZ;
+	private final int[] x, y, z;
+	private final double[] distSq;
+
+	private ForegroundIndex(final String key, final int width, final int height, final int minZ, final int maxZ,
+			final int[] x, final int[] y, final int[] z, final double[] distSq) {
+		this.key = key;
+		this.width = width;
+		this.height = height;
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.distSq = distSq;
+	}
+
+	/*
+	 * Indexes all the foreground voxels of a mask. Voxels at equal distances
+	 * are kept in raster (z, y, x) order
+	 */
+	static ForegroundIndex build(final String key, final ForegroundMask mask, final int width, final int height,
+			final int minZ, final int maxZ, final DistanceMap distances) {
+		final VoxelList voxels = new VoxelList();
+		for (int vz = minZ; vz <= maxZ; vz++) {
+			for (int vy = 0; vy < height; vy++) {
+				for (int vx = mask.nextForeground(0, vy, vz); vx >= 0; vx = mask.nextForeground(vx + 1, vy, vz))
+					voxels.add(vx, vy, vz);
+			}
+		}
+		final int n = voxels.size();
+		final double[] unsorted = new double[n];
+		for (int i = 0; i < n; i++)
+			unsorted[i] = distances.distanceSquared(voxels.x(i), voxels.y(i), voxels.z(i));
+		final int[] order = stableOrder(unsorted);
+		final int[] x = new int[n];
+		final int[] y = new int[n];
+		final int[] z = new int[n];
+		final double[] distSq = new double[n];
+		for (int i = 0; i < n; i++) {
+			final int v = order[i];
+			x[i] = voxels.x(v);
+			y[i] = voxels.y(v);
+			z[i] = voxels.z(v);
+			distSq[i] = unsorted[v];
+		}
+		return new ForegroundIndex(key, width, height, minZ, maxZ, x, y, z, distSq);
+	}
+
+	/* Indices of values in ascending order, by (stable) bottom-up merge sort */
+	private static int[] stableOrder(final double[] values) {
+		final int n = values.length;
+		int[] order = new int[n];
+		int[] buffer = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int width = 1; width < n; width *= 2) {
+			for (int lo = 0; lo < n; lo += 2 * width) {
+				final int mid = Math.min(lo + width, n);
+				final int hi = Math.min(lo + 2 * width, n);
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi)
+					buffer[k++] = (values[order[j]] < values[order[i]]) ? order[j++] : order[i++];
+				while (i < mid)
+					buffer[k++] = order[i++];
+				while (j < hi)
+					buffer[k++] = order[j++];
+			}
+			final int[] swap = order;
+			order = buffer;
+			buffer = swap;
+		}
+		return order;
+	}
+
+	/*
+	 * Assembles a mask from the indexed voxels within the specified bounds.
+	 * The mask is identical to one obtained by thresholding the image
+	 */
+	ForegroundMask toMask(final int minX, final int maxX, final int minY, final int maxY, final int minZ,
+			final int maxZ) {
+		if (minZ < this.minZ || maxZ > this.maxZ || minX < 0 || maxX >= width || minY < 0 || maxY >= height)
+			throw new IllegalArgumentException("Bounds exceed indexed volume");
+		final ForegroundMask mask = new ForegroundMask(minX, maxX, minY, maxY, minZ, maxZ);
+		for (int vz = minZ; vz <= maxZ; vz++)
+			mask.clear(vz);
+		for (int i = 0; i < distSq.length; i++) {
+			if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY && z[i] >= minZ && z[i] <= maxZ)
+				mask.set(x[i], y[i], z[i]);
+		}
+		return mask;
+	}
+
+	/**
+	 * @param sq the squared (calibrated) distance
+	 * @return the position of the first voxel farther than sqrt(sq) from the
+	 *         center
+	 */
+	int firstAbove(final double sq) {
+		int lo = 0, hi = distSq.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (distSq[mid] <= sq)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @param sq the squared (calibrated) distance
+	 * @return the position of the first voxel at least sqrt(sq) away from the
+	 *         center
+	 */
+	int firstAtOrAbove(final double sq) {
+		int lo = 0, hi = distSq.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (distSq[mid] < sq)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	int x(final int index) {
+		return x[index];
+	}
+
+	int y(final int index) {
+		return y[index];
+	}
+
+	int z(final int index) {
+		return z[index];
+	}
+
+	double distanceSquared(final int index) {
+		return distSq[index];
+	}
+
+	/** @return the number of indexed (foreground) voxels */
+	public int size() {
+		return distSq.length;
+	}
+
+	/**
+	 * @return the description of the image and parameters this index was
+	 *         built for
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/* Whether this index covers exactly the specified extent of an image */
+	boolean hasExtent(final int width, final int height, final int minZ, final int maxZ) {
+		return this.width == width && this.height == height && this.minZ == minZ && this.maxZ == maxZ;
+	}
+
+	/**
+	 * Writes this index to a (compressed) file.
+	 *
+	 * @param file the output file
+	 * @throws IOException if the file could not be written
+	 */
+	public void save(final File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(minZ);
+			out.writeInt(maxZ);
+			out.writeInt(distSq.length);
+			for (int i = 0; i < distSq.length; i++) {
+				out.writeInt(x[i]);
+				out.writeInt(y[i]);
+				out.writeInt(z[i]);
+				out.writeDouble(distSq[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #save(File)}.
+	 *
+	 * @param file the input file
+	 * @return the index
+	 * @throws IOException if the file could not be read or does not contain a
+	 *                     valid index
+	 */
+	public static ForegroundIndex load(final File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a foreground index: " + file);
+			final String key = in.readUTF();
+			final int width = in.readInt();
+			final int height = in.readInt();
+			final int minZ = in.readInt();
+			final int maxZ = in.readInt();
+			final int n = in.readInt();
+			if (width < 1 || height < 1 || minZ < 0 || maxZ < minZ || n < 0
+					|| n > (long) width * height * (maxZ - minZ + 1))
+				throw new IOException("Corrupted foreground index: " + file);
+			final int[] x = new int[n];
+			final int[] y = new int[n];
+			final int[] z = new int[n];
+			final double[] distSq = new double[n];
+			for (int i = 0; i < n; i++) {
+				x[i] = in.readInt();
+				y[i] = in.readInt();
+				z[i] = in.readInt();
+				distSq[i] = in.readDouble();
+				// toMask() and the bisection searches rely on these
+				if (x[i] < 0 || x[i] >= width || y[i] < 0 || y[i] >= height || z[i] < minZ || z[i] > maxZ
+						|| !(distSq[i] >= ((i == 0) ? 0 : distSq[i - 1])))
+					throw new IOException("Corrupted foreground index: " + file);
+			}
+			return new ForegroundIndex(key, width, height, minZ, maxZ, x, y, z, distSq);
+		}
+	}
+
+}
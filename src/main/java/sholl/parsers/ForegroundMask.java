@@ -0,0 +1,245 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Thresholded (binary) mask of the analyzed channel/frame, restricted to the
+ * parsing (hemishell) bounds and packed at 1 bit per voxel. Each slice is
+ * stored in its own array of 64-bit words, with rows padded to a whole number
+ * of words, so that slices can be filled concurrently.
+ *
+ * @author Tiago Ferreira
+ */
+final class ForegroundMask {
+
+	/* 6-connected neighborhood, in order of evaluation */
+	private static final int[][] NEIGHBORS = { { -1, 0, 0 }, { 1, 0, 0 }, { 0, -1, 0 }, { 0, 1, 0 }, { 0, 0, 1 },
+			{ 0, 0, -1 } };
+
+	private final int minX, maxX;
+	private final int minY, maxY;
+	private final int minZ, maxZ;
+	private final int wordsPerRow;
+	private final long[][] planes;
+
+	ForegroundMask(final int minX, final int maxX, final int minY, final int maxY, final int minZ,
+			final int maxZ) {
+		if (maxX < minX || maxY < minY || maxZ < minZ)
+			throw new IllegalArgumentException("Invalid mask bounds");
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minY = minY;
+		this.maxY = maxY;
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+		wordsPerRow = ((maxX - minX + 1) + 63) >>> 6;
+		planes = new long[maxZ - minZ + 1][];
+	}
+
+	/**
+	 * Thresholds a slice into the mask. Different slices can be filled from
+	 * different threads.
+	 *
+	 * @param z       the (0-based) slice index
+	 * @param reader  the reader for the slice pixels (and threshold limits)
+	 * @param proceed checked before each row. If it evaluates to false the
+	 *                slice is left unfilled
+	 * @return false if filling was interrupted
+	 */
+	boolean fill(final int z, final PixelReader reader, final BooleanSupplier proceed) {
+		final long[] plane = new long[(maxY - minY + 1) * wordsPerRow];
+		for (int y = minY; y <= maxY; y++) {
+			if (!proceed.getAsBoolean())
+				return false;
+			final int row = y * reader.width;
+			final int base = (y - minY) * wordsPerRow;
+			for (int x = minX; x <= maxX; x++) {
+				if (reader.withinThreshold(row + x)) {
+					final int bx = x - minX;
+					plane[base + (bx >>> 6)] |= 1L << bx;
+				}
+			}
+		}
+		planes[z - minZ] = plane;
+		return true;
+	}
+
+	/**
+	 * Sets a slice as background, so that it can be assembled voxel by voxel
+	 * using {@link #set(int, int, int)}.
+	 *
+	 * @param z the (0-based) slice index
+	 */
+	void clear(final int z) {
+		planes[z - minZ] = new long[(maxY - minY + 1) * wordsPerRow];
+	}
+
+	/**
+	 * Sets the specified voxel as foreground. The slice must have been
+	 * {@link #clear(int) cleared} first. Coordinates must be within the mask
+	 * bounds.
+	 */
+	void set(final int x, final int y, final int z) {
+		final int bx = x - minX;
+		planes[z - minZ][(y - minY) * wordsPerRow + (bx >>> 6)] |= 1L << bx;
+	}
+
+	/**
+	 * @return whether the specified voxel is foreground. Coordinates must be
+	 *         within the mask bounds.
+	 */
+	boolean get(final int x, final int y, final int z) {
+		final int bx = x - minX;
+		return (planes[z - minZ][(y - minY) * wordsPerRow + (bx >>> 6)] & (1L << bx)) != 0;
+	}
+
+	/**
+	 * Checks the 6-connected neighborhood of a voxel in a fixed order: A
+	 * neighbor outside box leaves the neighborhood unknown, and the voxel is
+	 * considered isolated. In a single-slice mask this amounts to checking the
+	 * 4-connected neighborhood.
+	 *
+	 * @param box the box as {minX, maxX, minY, maxY, minZ, maxZ}. Must be
+	 *            within the mask bounds
+	 * @return whether a (known) neighbor of the voxel is foreground
+	 */
+	boolean hasNeighbors(final int x, final int y, final int z, final int[] box) {
+		for (final int[] offset : NEIGHBORS) {
+			final int nx = x + offset[0];
+			final int ny = y + offset[1];
+			final int nz = z + offset[2];
+			if (nx < box[0] || nx > box[1] || ny < box[2] || ny > box[3] || nz < box[4] || nz > box[5])
+				return false;
+			if (get(nx, ny, nz))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the bounding box of all foreground voxels. Only whole words are
+	 * scanned, so this is considerably cheaper than parsing.
+	 *
+	 * @return the foreground bounds as {minX, maxX, minY, maxY, minZ, maxZ},
+	 *         or null if the mask contains no foreground
+	 */
+	int[] foregroundBounds() {
+		return foregroundBounds(new int[] { minX, maxX, minY, maxY, minZ, maxZ });
+	}
+
+	/**
+	 * Computes the bounding box of the foreground voxels within a box.
+	 *
+	 * @param box the box as {minX, maxX, minY, maxY, minZ, maxZ}. Must be
+	 *            within the mask bounds
+	 * @return the foreground bounds within box (in the same format), or null
+	 *         if box contains no foreground
+	 */
+	int[] foregroundBounds(final int[] box) {
+		int fMinX = Integer.MAX_VALUE, fMaxX = Integer.MIN_VALUE;
+		int fMinY = Integer.MAX_VALUE, fMaxY = Integer.MIN_VALUE;
+		int fMinZ = Integer.MAX_VALUE, fMaxZ = Integer.MIN_VALUE;
+		final int firstBit = box[0] - minX;
+		final int lastBit = box[1] - minX;
+		final int firstWord = firstBit >>> 6;
+		final int lastWord = lastBit >>> 6;
+		final long firstMask = -1L << firstBit;
+		final long lastMask = -1L >>> (63 - (lastBit & 63));
+		for (int z = box[4]; z <= box[5]; z++) {
+			final long[] plane = planes[z - minZ];
+			if (plane == null)
+				continue;
+			for (int y = box[2]; y <= box[3]; y++) {
+				final int base = (y - minY) * wordsPerRow;
+				for (int w = firstWord; w <= lastWord; w++) {
+					long word = plane[base + w];
+					if (w == firstWord)
+						word &= firstMask;
+					if (w == lastWord)
+						word &= lastMask;
+					if (word == 0)
+						continue;
+					fMinX = Math.min(fMinX, minX + (w << 6) + Long.numberOfTrailingZeros(word));
+					fMaxX = Math.max(fMaxX, minX + (w << 6) + 63 - Long.numberOfLeadingZeros(word));
+					fMinY = Math.min(fMinY, y);
+					fMaxY = Math.max(fMaxY, y);
+					fMinZ = Math.min(fMinZ, z);
+					fMaxZ = Math.max(fMaxZ, z);
+				}
+			}
+		}
+		if (fMinX == Integer.MAX_VALUE)
+			return null;
+		return new int[] { fMinX, fMaxX, fMinY, fMaxY, fMinZ, fMaxZ };
+	}
+
+	/**
+	 * Computes a fast, non-cryptographic 64-bit hash of the mask contents and
+	 * bounds, so that unchanged data can be recognized across sessions.
+	 *
+	 * @return the hash
+	 */
+	long contentHash() {
+		long hash = mix(mix(mix(minX, maxX), mix(minY, maxY)), mix(minZ, maxZ));
+		for (final long[] plane : planes) {
+			if (plane == null) {
+				hash = mix(hash, -1L);
+				continue;
+			}
+			for (final long word : plane)
+				hash = mix(hash, word);
+		}
+		return hash;
+	}
+
+	private static long mix(final long hash, final long value) {
+		long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return h * 0xBF58476D1CE4E5B9L + value;
+	}
+
+	/**
+	 * Retrieves the next foreground voxel along a row.
+	 *
+	 * @return the x-coordinate of the first foreground voxel of row (y, z) at or
+	 *         after x, or -1 if there is none
+	 */
+	int nextForeground(final int x, final int y, final int z) {
+		if (x > maxX)
+			return -1;
+		final int bx = Math.max(0, x - minX);
+		final long[] plane = planes[z - minZ];
+		final int base = (y - minY) * wordsPerRow;
+		int w = bx >>> 6;
+		long word = plane[base + w] & (-1L << bx);
+		while (true) {
+			if (word != 0)
+				return minX + (w << 6) + Long.numberOfTrailingZeros(word);
+			if (++w == wordsPerRow)
+				return -1;
+			word = plane[base + w];
+		}
+	}
+
+}
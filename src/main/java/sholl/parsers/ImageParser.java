@@ -21,22 +21,44 @@
  */
 package sholl.parsers;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import org.scijava.Context;
 import org.scijava.app.StatusService;
 import org.scijava.command.ContextCommand;
 import org.scijava.plugin.Parameter;
+import org.scijava.thread.ThreadService;
 
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.plugin.ZProjector;
+import ij.process.FloatPolygon;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import sholl.Profile;
+import sholl.ProfileEntry;
 import sholl.ShollUtils;
 import sholl.UPoint;
 
@@ -45,9 +67,16 @@ import sholl.UPoint;
  */
 public class ImageParser extends ContextCommand implements Parser {
 
+	/* The number of times each image (keyed by ID) has been changed */
+	private static final Map<Integer, Long> EDITS = new ConcurrentHashMap<>();
+	private static volatile ImageListener imageListener;
+
 	@Parameter
 	protected StatusService statusService;
 
+	@Parameter
+	protected ThreadService threadService;
+
 	protected Profile profile;
 	protected Properties properties;
 	protected UPoint center;
@@ -68,6 +97,23 @@ public class ImageParser extends ContextCommand implements Parser {
 	protected long start;
 
 	protected volatile boolean running = true;
+	protected ExecutorService executorService;
+	protected boolean countsOnly;
+	protected boolean adaptiveEndRadius;
+	protected int maxEmptyShells = 5;
+	private long timeBudget; // nanoseconds, 0: no limit
+	private ProfileCache profileCache;
+	private String cacheKey;
+	private DistanceMap distanceMap;
+	private boolean indexed;
+	private ForegroundIndex foregroundIndex;
+	private SliceCache sliceCache;
+	private long deadline;
+	private volatile boolean timedOut;
+	private final List<ProfileEntryListener> listeners = new CopyOnWriteArrayList<>();
+	private List<UPoint> centers;
+	private Properties centerTemplate;
+	private Profile[] centerProfiles;
 
 	@Deprecated
 	protected ImageParser(final ImagePlus imp) {
@@ -116,6 +162,537 @@ public class ImageParser extends ContextCommand implements Parser {
 		zc = (int) center.rawZ(cal);
 	}
 
+	/**
+	 * Sets multiple centers of analysis (multi-center mode), e.g., the somata
+	 * of all the neurons in a field. The image is thresholded (and scanned)
+	 * only once, and a profile is parsed for each center, as if each center
+	 * had been parsed on its own with the same settings. The first center
+	 * becomes the {@link #setCenter(double, double, double) current center}.
+	 * Parsed profiles are retrieved with {@link #getProfiles()}.
+	 *
+	 * @param centers the centers, in calibrated units, or null to exit
+	 *                multi-center mode
+	 */
+	public void setCenters(final List<UPoint> centers) {
+		if (centers != null && centers.isEmpty())
+			throw new IllegalArgumentException("List of centers is empty");
+		this.centers = (centers == null) ? null : new ArrayList<>(centers);
+		centerProfiles = null;
+		if (centers != null) {
+			final UPoint first = centers.get(0);
+			setCenter(first.x, first.y, first.z);
+		}
+	}
+
+	/**
+	 * Sets the centers of analysis from ROIs, e.g., a multi-point selection or
+	 * the contents of the ROI Manager: Each point of a point selection is a
+	 * center, while area and line ROIs contribute their contour centroid.
+	 * Centers are placed on the slice associated with each point (or ROI), or
+	 * on the active slice if none.
+	 *
+	 * @param rois the ROIs defining the centers
+	 * @see #setCenters(List)
+	 */
+	public void setCenters(final Roi... rois) {
+		final List<UPoint> points = new ArrayList<>();
+		for (final Roi roi : rois) {
+			if (roi instanceof PointRoi) {
+				final FloatPolygon fp = roi.getFloatPolygon();
+				for (int i = 0; i < fp.npoints; i++)
+					points.add(new UPoint((int) fp.xpoints[i], (int) fp.ypoints[i],
+							roiSlice(((PointRoi) roi).getPointPosition(i)), cal));
+			} else {
+				final double[] ctd = roi.getContourCentroid();
+				points.add(new UPoint((int) Math.round(ctd[0]), (int) Math.round(ctd[1]),
+						roiSlice(roi.getPosition()), cal));
+			}
+		}
+		setCenters(points);
+	}
+
+	/* Converts the stack position of a ROI into a slice */
+	private int roiSlice(final int stackIndex) {
+		return (stackIndex < 1) ? imp.getZ() : imp.convertIndexToPosition(stackIndex)[1];
+	}
+
+	public boolean isMultiCenter() {
+		return centers != null;
+	}
+
+	/**
+	 * @return the profile of each center parsed in multi-center mode, in the
+	 *         order centers were specified, or a list holding the
+	 *         {@link #getProfile() profile} otherwise
+	 */
+	public List<Profile> getProfiles() {
+		if (centerProfiles == null)
+			return Collections.singletonList(profile);
+		final List<Profile> profiles = new ArrayList<>(centerProfiles.length);
+		for (final Profile p : centerProfiles) {
+			if (p != null)
+				profiles.add(p);
+		}
+		return profiles;
+	}
+
+	/** @return the number of centers in multi-center mode, 1 otherwise */
+	int centersCount() {
+		return (centers == null) ? 1 : centers.size();
+	}
+
+	/*
+	 * Multi-center mode: Makes the specified center current, together with its
+	 * profile and bounds. Profiles are created on first selection, inheriting
+	 * the settings of the parser at the time the first center was selected
+	 */
+	void selectCenter(final int index) {
+		if (centerProfiles == null) {
+			centerProfiles = new Profile[centers.size()];
+			centerTemplate = cleanProfile(properties).getProperties();
+		}
+		if (centerProfiles[index] == null) {
+			final Profile p = new Profile();
+			p.assignImage(imp);
+			p.getProperties().putAll(centerTemplate);
+			centerProfiles[index] = p;
+		}
+		profile = centerProfiles[index];
+		properties = profile.getProperties();
+		final UPoint c = centers.get(index);
+		setCenter(c.x, c.y, c.z);
+		setHemiShells(centerTemplate.getProperty(KEY_HEMISHELLS, HEMI_NONE));
+	}
+
+	/*
+	 * Creates a profile holding only the parsing settings stored in the
+	 * specified properties, discarding the outcome of earlier parses
+	 */
+	private Profile cleanProfile(final Properties settings) {
+		final Profile p = new Profile();
+		p.assignImage(imp);
+		for (final String key : settings.stringPropertyNames()) {
+			if (!KEY_INCOMPLETE.equals(key) && !KEY_STOP_RADIUS.equals(key) && !KEY_STOP_REASON.equals(key))
+				p.getProperties().setProperty(key, settings.getProperty(key));
+		}
+		return p;
+	}
+
+	/*
+	 * Multi-center mode: Retrieves the bounds of each center, as {minX, maxX,
+	 * minY, maxY, minZ, maxZ}. Each center is selected in turn
+	 */
+	int[][] centersBounds() {
+		final int[][] boxes = new int[centers.size()][];
+		for (int i = 0; i < boxes.length; i++) {
+			selectCenter(i);
+			boxes[i] = new int[] { minX, maxX, minY, maxY, minZ, maxZ };
+		}
+		return boxes;
+	}
+
+	/* Computes the union of the specified bounds */
+	static int[] union(final int[][] boxes) {
+		final int[] bounds = boxes[0].clone();
+		for (final int[] box : boxes) {
+			for (int d = 0; d < 6; d += 2) {
+				bounds[d] = Math.min(bounds[d], box[d]);
+				bounds[d + 1] = Math.max(bounds[d + 1], box[d + 1]);
+			}
+		}
+		return bounds;
+	}
+
+	@Override
+	public void setCountsOnly(final boolean countsOnly) {
+		this.countsOnly = countsOnly;
+	}
+
+	@Override
+	public boolean isCountsOnly() {
+		return countsOnly;
+	}
+
+	/**
+	 * Sets whether the ending radius should be adapted to the arbor. In
+	 * adaptive mode radii are parsed from the inside out, and parsing stops
+	 * once {@link #setMaxEmptyShells(int) a run of consecutive empty shells}
+	 * is found, or once the remaining shells lie beyond the bounding box of the
+	 * thresholded foreground. The radius and the reason for stopping are
+	 * recorded in the profile properties ({@link #KEY_STOP_RADIUS},
+	 * {@link #KEY_STOP_REASON}). Listeners may be notified of a few shells
+	 * beyond the stop radius: These are removed from the final profile.
+	 *
+	 * @param adaptive if true, parsing may stop before the ending radius
+	 */
+	public void setAdaptiveEndRadius(final boolean adaptive) {
+		adaptiveEndRadius = adaptive;
+	}
+
+	public boolean isAdaptiveEndRadius() {
+		return adaptiveEndRadius;
+	}
+
+	/**
+	 * Sets the number of consecutive zero-count shells that terminates parsing
+	 * in {@link #setAdaptiveEndRadius(boolean) adaptive mode}.
+	 *
+	 * @param nShells the number of empty shells (default is 5)
+	 */
+	public void setMaxEmptyShells(final int nShells) {
+		if (nShells < 1)
+			throw new IllegalArgumentException("Number of empty shells must be > 0");
+		maxEmptyShells = nShells;
+	}
+
+	public int getMaxEmptyShells() {
+		return maxEmptyShells;
+	}
+
+	/*
+	 * Retrieves the number of (sorted) radii whose shells can intercept
+	 * foreground, i.e., radii no larger than the distance from the center to
+	 * the farthest corner of the foreground bounding box plus margin. Distances
+	 * are measured using the specified pixel dimensions. Returns 0 if the mask
+	 * has no foreground.
+	 */
+	int shellsWithinForeground(final ForegroundMask mask, final double pw, final double ph, final double pd,
+			final double margin) {
+		return shellsWithinForeground(mask.foregroundBounds(), pw, ph, pd, margin);
+	}
+
+	/* As above, for the foreground bounds {minX, maxX, minY, maxY, minZ, maxZ} */
+	int shellsWithinForeground(final int[] bounds, final double pw, final double ph, final double pd,
+			final double margin) {
+		if (bounds == null)
+			return 0;
+		final double dx = Math.max(Math.abs(bounds[0] - xc), Math.abs(bounds[1] - xc)) * pw;
+		final double dy = Math.max(Math.abs(bounds[2] - yc), Math.abs(bounds[3] - yc)) * ph;
+		final double dz = Math.max(Math.abs(bounds[4] - zc), Math.abs(bounds[5] - zc)) * pd;
+		final double maxDistance = Math.sqrt(dx * dx + dy * dy + dz * dz) + margin;
+		int n = 0;
+		while (n < radii.size() && radii.get(n) <= maxDistance)
+			n++;
+		return n;
+	}
+
+	/*
+	 * Records where and why parsing stopped: Removes shells parsed beyond a
+	 * run of empty shells, and flags the profile as incomplete if parsing was
+	 * cancelled or timed out
+	 */
+	void recordStop(final EmptyShellTracker tracker, final int nShells) {
+		final int last;
+		final String reason;
+		if (tracker != null && tracker.stopped()) {
+			// all shells up to the run were parsed: profile is complete
+			last = tracker.limit();
+			reason = STOP_EMPTY_SHELLS;
+			profile.trimEntriesAbove(radii.get(last));
+		} else if (!running || timedOut) {
+			properties.setProperty(KEY_INCOMPLETE, "true");
+			properties.setProperty(KEY_STOP_RADIUS, (profile.isEmpty()) ? UNSET : String.valueOf(profile.endRadius()));
+			properties.setProperty(KEY_STOP_REASON, (timedOut) ? STOP_TIME_BUDGET : STOP_CANCELLED);
+			return;
+		} else if (!adaptiveEndRadius) {
+			return;
+		} else if (nShells < radii.size()) {
+			last = nShells - 1;
+			reason = STOP_NO_FOREGROUND;
+		} else {
+			last = radii.size() - 1;
+			reason = STOP_END_RADIUS;
+		}
+		properties.setProperty(KEY_STOP_RADIUS, (last < 0) ? UNSET : String.valueOf(radii.get(last)));
+		properties.setProperty(KEY_STOP_REASON, reason);
+	}
+
+	/**
+	 * Sets the persistent cache of parsed profiles. When set, the thresholded
+	 * data is hashed before parsing: If a profile parsed from identical data
+	 * with identical parameters is cached, it is retrieved instead of being
+	 * parsed. Complete profiles are stored after parsing.
+	 *
+	 * @param cache the cache, or null to disable caching
+	 */
+	public void setProfileCache(final ProfileCache cache) {
+		profileCache = cache;
+	}
+
+	public ProfileCache getProfileCache() {
+		return profileCache;
+	}
+
+	/**
+	 * Sets whether parsing should run off a {@link ForegroundIndex}. The index
+	 * is built on first use, by thresholding the analyzed channel/frame once,
+	 * and is reused for as long as the image {@link #getDataStamp() data},
+	 * threshold and center remain unchanged: Parsing the same data with
+	 * different radii never reads the image again.
+	 *
+	 * @param indexed if true, parsing uses a foreground index
+	 */
+	public void setIndexed(final boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	/**
+	 * Sets a previously built index (e.g., one restored using
+	 * {@link ForegroundIndex#load(java.io.File)}) and enables indexed parsing.
+	 * The index is ignored, and rebuilt, if it was built for different data,
+	 * different parameters or a different extent of the image. Since only
+	 * images mapped from a file keep their {@link #getDataStamp() stamp}
+	 * across sessions, restored indices are only reused for such images.
+	 *
+	 * @param index the foreground index
+	 */
+	public void setForegroundIndex(final ForegroundIndex index) {
+		foregroundIndex = index;
+		indexed = true;
+	}
+
+	/**
+	 * @return the foreground index used by the last parse, or null if parsing
+	 *         is not {@link #setIndexed(boolean) indexed}
+	 */
+	public ForegroundIndex getForegroundIndex() {
+		return (indexed) ? foregroundIndex : null;
+	}
+
+	/*
+	 * Assembles the mask of the parsing bounds from the foreground index,
+	 * building the index over the specified slices if needed. Returns null if
+	 * parsing was aborted
+	 */
+	ForegroundMask indexedMask(final int indexMinZ, final int indexMaxZ) {
+		final String key = ProfileCache.key("index", getDataStamp(), imp.getTitle(), imp.getWidth(),
+				imp.getHeight(), imp.getNSlices(), indexMinZ, indexMaxZ, channel, frame, lowerT, upperT, center.x,
+				center.y, center.z, cal.pixelWidth, cal.pixelHeight, cal.pixelDepth, cal.xOrigin, cal.yOrigin,
+				cal.zOrigin);
+		ForegroundIndex index = foregroundIndex;
+		if (index == null || !key.equals(index.getKey())
+				|| !index.hasExtent(imp.getWidth(), imp.getHeight(), indexMinZ, indexMaxZ)) {
+			final ForegroundMask fullMask = thresholdSlices(indexMinZ, indexMaxZ);
+			if (fullMask == null)
+				return null;
+			statusService.showStatus("Indexing foreground...");
+			index = ForegroundIndex.build(key, fullMask, imp.getWidth(), imp.getHeight(), indexMinZ, indexMaxZ,
+					getDistanceMap());
+			foregroundIndex = index;
+		}
+		return index.toMask(minX, maxX, minY, maxY, minZ, maxZ);
+	}
+
+	/**
+	 * Identifies the current state of the analyzed data without reading it, so
+	 * that indices and cached shells built from it can be recognized as stale.
+	 * Images mapped from a file by {@link MappedTiffStack} are identified by
+	 * the path, size and modification time of the file, and remain identified
+	 * across sessions. Any other image is identified by its ID and by the
+	 * number of times it has been reported as {@link #imageChanged(ImagePlus)
+	 * changed}. Note that {@link ImagePlus#changes} is never trusted as proof
+	 * of unchanged data.
+	 *
+	 * @return the stamp of the analyzed data
+	 */
+	public String getDataStamp() {
+		checkUnsetFields();
+		listenToImages();
+		final long edits = EDITS.getOrDefault(imp.getID(), 0L);
+		if (imp.getStack() instanceof MappedTiffStack) {
+			final File file = ((MappedTiffStack) imp.getStack()).getFile();
+			return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() + ":" + edits;
+		}
+		return "image:" + imp.getID() + ":" + edits;
+	}
+
+	/**
+	 * Invalidates all indices and cached shells built from the specified image.
+	 * Images updated through {@link ImagePlus#updateAndDraw()} (or otherwise
+	 * notifying {@link ImageListener}s) are invalidated automatically: This
+	 * needs to be called only after pixels are edited in place without
+	 * notification, e.g., by a script modifying the arrays of its stack.
+	 *
+	 * @param imp the edited image
+	 */
+	public static void imageChanged(final ImagePlus imp) {
+		EDITS.merge(imp.getID(), 1L, Long::sum);
+	}
+
+	/* Installs, once, the listener tracking edits of all images */
+	private static void listenToImages() {
+		if (imageListener != null)
+			return;
+		synchronized (EDITS) {
+			if (imageListener != null)
+				return;
+			imageListener = new ImageListener() {
+
+				@Override
+				public void imageOpened(final ImagePlus imp) {
+					// nothing to invalidate
+				}
+
+				@Override
+				public void imageClosed(final ImagePlus imp) {
+					// IDs are never reused
+					EDITS.remove(imp.getID());
+				}
+
+				@Override
+				public void imageUpdated(final ImagePlus imp) {
+					imageChanged(imp);
+				}
+			};
+			ImagePlus.addImageListener(imageListener);
+		}
+	}
+
+	/* Thresholds the whole extent of the specified slices. Returns null if aborted */
+	private ForegroundMask thresholdSlices(final int fromZ, final int toZ) {
+		final ForegroundMask fullMask = new ForegroundMask(0, imp.getWidth() - 1, 0, imp.getHeight() - 1, fromZ,
+				toZ);
+		final int nThreads = getThreads(toZ - fromZ + 1);
+		final AtomicInteger nextSlice = new AtomicInteger(fromZ);
+		runWorkers(nThreads, worker -> {
+			for (int z = nextSlice.getAndIncrement(); z <= toZ; z = nextSlice.getAndIncrement()) {
+				if (z + nThreads <= toZ)
+					prefetchSlice(z + nThreads + 1);
+				if (!fullMask.fill(z, getPixelReader(z + 1), this::proceed))
+					return;
+			}
+		});
+		return (proceed()) ? fullMask : null;
+	}
+
+	/**
+	 * Describes all the parameters (other than the analyzed data) affecting
+	 * the parsed profile. Subclasses with additional parameters should append
+	 * them.
+	 *
+	 * @return the parameters used to key cached profiles
+	 */
+	protected String parsingParameters() {
+		return getClass().getName() + ";center=" + xc + "," + yc + "," + zc + ";radii="
+				+ Arrays.toString(getRadii()) + ";threshold=" + lowerT + "-" + upperT + ";position=" + channel + ","
+				+ frame + ";bounds=" + minX + "," + maxX + "," + minY + "," + maxY + "," + minZ + "," + maxZ
+				+ ";hemishells=" + properties.getProperty(KEY_HEMISHELLS) + ";calibration=" + cal.pixelWidth + ","
+				+ cal.pixelHeight + "," + cal.pixelDepth + "," + cal.xOrigin + "," + cal.yOrigin + "," + cal.zOrigin
+				+ ";countsOnly=" + countsOnly + ";adaptive=" + adaptiveEndRadius + "," + maxEmptyShells;
+	}
+
+	/*
+	 * Retrieves the profile from the cache (if any) using the hash of the
+	 * thresholded data. Returns true on a cache hit
+	 */
+	boolean loadCachedProfile(final ForegroundMask mask) {
+		cacheKey = null;
+		if (profileCache == null)
+			return false;
+		cacheKey = ProfileCache.key(parsingParameters(), mask.contentHash());
+		final Profile cached = profileCache.get(cacheKey);
+		if (cached == null)
+			return false;
+		profile.merge(cached);
+		properties.putAll(cached.getProperties());
+		for (final ProfileEntry entry : cached.entries())
+			fireEntryParsed(entry);
+		statusService.showStatus("Profile retrieved from cache");
+		return true;
+	}
+
+	/* Stores the parsed profile in the cache, unless parsing was interrupted */
+	void storeCachedProfile() {
+		if (profileCache == null || cacheKey == null || !running || timedOut || profile.isEmpty())
+			return;
+		final Map<String, String> outcome = new HashMap<>();
+		for (final String key : new String[] { KEY_STOP_RADIUS, KEY_STOP_REASON }) {
+			if (properties.getProperty(key) != null)
+				outcome.put(key, properties.getProperty(key));
+		}
+		try {
+			profileCache.put(cacheKey, profile, outcome);
+		} catch (final IOException exc) {
+			statusService.warn("Profile could not be cached: " + exc.getMessage());
+		}
+	}
+
+	/**
+	 * Sets a time budget for {@link #parse()}. Once the budget is exhausted,
+	 * parsing stops within a row of pixels, and the shells parsed so far are
+	 * retained in a profile flagged as {@link Profile#isIncomplete()
+	 * incomplete}. With a budget, radii are parsed from the inside out (3D
+	 * images are parsed shell-by-shell), so that partial profiles are
+	 * populated from the starting radius.
+	 *
+	 * @param budget the maximum parsing time. Zero (the default) means no
+	 *               limit
+	 * @param unit   the time unit of budget
+	 */
+	@Override
+	public void setTimeBudget(final long budget, final TimeUnit unit) {
+		if (budget < 0)
+			throw new IllegalArgumentException("Time budget cannot be negative");
+		timeBudget = unit.toNanos(budget);
+	}
+
+	public long getTimeBudget(final TimeUnit unit) {
+		return unit.convert(timeBudget, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return true if the last {@link #parse()} call ran out of time
+	 */
+	public boolean timedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Checks whether parsing should proceed. Meant to be called frequently
+	 * (e.g., once per row of pixels) so that cancellation and time budgets take
+	 * effect promptly.
+	 *
+	 * @return false if parsing was {@link #terminate() terminated} or its time
+	 *         budget has been exhausted
+	 */
+	protected boolean proceed() {
+		if (timeBudget > 0 && !timedOut && System.nanoTime() - deadline > 0)
+			timedOut = true;
+		return running && !timedOut;
+	}
+
+	/* Whether radii should be parsed in ascending order */
+	protected boolean insideOut() {
+		return adaptiveEndRadius || timeBudget > 0;
+	}
+
+	@Override
+	public void addProfileEntryListener(final ProfileEntryListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeProfileEntryListener(final ProfileEntryListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Notifies registered listeners that a shell has been parsed. May be called
+	 * from worker threads.
+	 *
+	 * @param entry the entry of the parsed shell
+	 */
+	protected void fireEntryParsed(final ProfileEntry entry) {
+		for (final ProfileEntryListener listener : listeners)
+			listener.entryParsed(entry);
+	}
+
 	public void setThreshold(final double lower, final double upper) {
 		lowerT = lower;
 		upperT = upper;
@@ -133,6 +710,14 @@ public class ImageParser extends ContextCommand implements Parser {
 		}
 	}
 
+	/**
+	 * @return a copy of the radii to be parsed, or null if radii have not been
+	 *         set
+	 */
+	public double[] getRadii() {
+		return (radii == null) ? null : radii.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
 	public void setRadii(final double startRadius, final double step, final double endRadius) {
 		final double fStartRadius = (Double.isNaN(startRadius)) ? voxelSize : Math.max(voxelSize, startRadius);
 		final double maxRadius = maxPossibleRadius();
@@ -206,104 +791,52 @@ public class ImageParser extends ContextCommand implements Parser {
 
 	}
 
-	public int[][] getCircumferencePoints(final int cx, final int cy, final int radius) {
-
-		// Initialize algorithm variables
-		int i = 0, x = 0, y = radius;
-		final int r = radius + 1;
-		int err = 0, errR, errD;
-
-		// Array to store first 1/8 of points relative to center
-		final int[][] data = new int[r][2];
-
-		do {
-			// Add this point as part of the circumference
-			data[i][0] = x;
-			data[i++][1] = y;
-
-			// Calculate the errors for going right and down
-			errR = err + 2 * x + 1;
-			errD = err - 2 * y + 1;
-
-			// Choose which direction to go
-			if (Math.abs(errD) < Math.abs(errR)) {
-				y--;
-				err = errD; // Go down
-			} else {
-				x++;
-				err = errR; // Go right
-			}
-		} while (x <= y);
-
-		// Create an array to hold the absolute coordinates
-		final int[][] points = new int[r * 8][2];
-
-		// Loop through the relative circumference points
-		for (i = 0; i < r; i++) {
-
-			// Pull out the point for quick access;
-			x = data[i][0];
-			y = data[i][1];
-
-			// Convert the relative point to an absolute point
-			points[i][0] = x + cx;
-			points[i][1] = y + cy;
-
-			// Use geometry to calculate remaining 7/8 of the circumference
-			// points
-			points[r * 4 - i - 1][0] = x + cx;
-			points[r * 4 - i - 1][1] = -y + cy;
-			points[r * 8 - i - 1][0] = -x + cx;
-			points[r * 8 - i - 1][1] = y + cy;
-			points[r * 4 + i][0] = -x + cx;
-			points[r * 4 + i][1] = -y + cy;
-			points[r * 2 - i - 1][0] = y + cx;
-			points[r * 2 - i - 1][1] = x + cy;
-			points[r * 2 + i][0] = y + cx;
-			points[r * 2 + i][1] = -x + cy;
-			points[r * 6 + i][0] = -y + cx;
-			points[r * 6 + i][1] = x + cy;
-			points[r * 6 - i - 1][0] = -y + cx;
-			points[r * 6 - i - 1][1] = -x + cy;
-
-		}
-
-		// Count how many points are out of bounds, while eliminating
-		// duplicates. Duplicates are always at multiples of r (8 points)
-		int pxX, pxY, count = 0, j = 0;
-		for (i = 0; i < points.length; i++) {
+	/**
+	 * @return the parsing bounds as {minX, maxX, minY, maxY, minZ, maxZ}, in
+	 *         (0-based) pixel coordinates. Bounds are set by
+	 *         {@link #setHemiShells(String)} and depend on the largest radius
+	 */
+	public int[] getBounds() {
+		return new int[] { minX, maxX, minY, maxY, minZ, maxZ };
+	}
 
-			// Pull the coordinates out of the array
-			pxX = points[i][0];
-			pxY = points[i][1];
+	/**
+	 * Retrieves the Bresenham circumference points of the specified circle that
+	 * lie within the image (and hemishell) bounds. Points are ordered around the
+	 * circle.
+	 *
+	 * @param cx     the x-coordinate of the center (in pixels)
+	 * @param cy     the y-coordinate of the center (in pixels)
+	 * @param radius the radius (in pixels)
+	 * @return the circumference points as (x, y) pairs
+	 */
+	public int[][] getCircumferencePoints(final int cx, final int cy, final int radius) {
 
-			if ((i + 1) % r != 0 && withinXYbounds(pxX, pxY))
+		// Center-relative offsets are cached, so only clipping needs to be
+		// computed here
+		final CircleOffsets offsets = CircleOffsets.get(radius);
+		final int n = offsets.size();
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (withinXYbounds(cx + offsets.dx(i), cy + offsets.dy(i)))
 				count++;
 		}
 
-		// Create the final array containing only unique points within bounds
-		final int[][] refined = new int[count][2];
-
-		for (i = 0; i < points.length; i++) {
-
-			pxX = points[i][0];
-			pxY = points[i][1];
-
-			if ((i + 1) % r != 0 && withinXYbounds(pxX, pxY)) {
-				refined[j][0] = pxX;
-				refined[j++][1] = pxY;
-			}
-
+		// Create the final array containing only points within bounds
+		final int[][] refined = new int[count][];
+		for (int i = 0, j = 0; i < n && j < count; i++) {
+			final int x = cx + offsets.dx(i);
+			final int y = cy + offsets.dy(i);
+			if (withinXYbounds(x, y))
+				refined[j++] = new int[] { x, y };
 		}
-
-		// Return the array
 		return refined;
 
 	}
 
 	public ImagePlus getMask() {
 		final ImagePlus img = new ImagePlus(imp.getTitle() + "_ShollMask",
-				getMaskProcessor(false, profile.countsAsArray()));
+				getMaskProcessor(false, profile.countsView()));
 		img.setCalibration(cal);
 		return img;
 	}
@@ -328,23 +861,22 @@ public class ImageParser extends ContextCommand implements Parser {
 		final ImageProcessor mp = floatProcessor ? new FloatProcessor(ip.getWidth(), ip.getHeight())
 				: new ShortProcessor(ip.getWidth(), ip.getHeight());
 
+		// Re-bin pixels by their distance to the center: Band i spans
+		// [start + i*width, start + (i+1)*width[
 		final int drawSteps = maskValues.length;
-		final int sRadius = (int) Math.round(profile.startRadius() / voxelSize);
-		final int drawWidth = (int) Math.round((profile.endRadius() - profile.startRadius()) / drawSteps);
-
-		for (int i = 0; i < drawSteps; i++) {
-			int drawRadius = sRadius + i * drawWidth;
-			for (int j = 0; j < drawWidth; j++) {
-
-				// this will already exclude pixels out of bounds
-				final int[][] points = getCircumferencePoints(xc, yc, drawRadius++);
-				for (final int[] point : points) {
-					final double value = ip.getPixel(point[0], point[1]);
-					if (withinThreshold(value)) {
-						mp.putPixelValue(point[0], point[1], maskValues[i]);
-					}
-				}
-
+		final double startRadius = profile.startRadius();
+		double drawWidth = (profile.endRadius() - startRadius) / drawSteps;
+		if (!(drawWidth > 0)) drawWidth = voxelSize;
+		final DistanceMap map = getDistanceMap();
+		final char[] distances = map.plane();
+		final double quantum = map.quantum();
+		final int width = ip.getWidth();
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				final double band = (distances[y * width + x] * quantum - startRadius) / drawWidth;
+				if (band < 0 || band >= drawSteps || !withinThreshold(ip.getPixel(x, y)))
+					continue;
+				mp.putPixelValue(x, y, maskValues[(int) band]);
 			}
 		}
 
@@ -353,6 +885,23 @@ public class ImageParser extends ContextCommand implements Parser {
 
 	}
 
+	/*
+	 * Retrieves the distance map of the image to the current center. The map
+	 * is reused for as long as the center and the spatial calibration remain
+	 * unchanged, so that changing radii only requires distances to be re-binned
+	 */
+	DistanceMap getDistanceMap() {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getNSlices();
+		DistanceMap map = distanceMap;
+		if (map == null || !map.matches(w, h, d, cal, center)) {
+			map = new DistanceMap(w, h, d, cal, center);
+			distanceMap = map;
+		}
+		return map;
+	}
+
 	private ImageProcessor projImp() {
 		ImageProcessor ip;
 		final ZProjector zp = new ZProjector(imp);
@@ -396,6 +945,112 @@ public class ImageParser extends ContextCommand implements Parser {
 		return withinXYbounds(x, y) && withinZbounds(z);
 	}
 
+	/**
+	 * Sets the executor running parallel parsing tasks, so that embedding
+	 * applications can share a single pool across parsers. Parsing blocks until
+	 * all of its tasks complete: Unless the pool has spare threads, parsing
+	 * should not be triggered from one of its own threads.
+	 *
+	 * @param executorService the executor service. If null (the default), each
+	 *                        parsing operation spawns its own threads.
+	 */
+	public void setExecutorService(final ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/* The pool running parallel tasks on the current executor (or threads) */
+	WorkerPool workers() {
+		return new WorkerPool(threadService, executorService, Prefs.getThreads(), this::terminate);
+	}
+
+	/**
+	 * @param nTasks the number of tasks to be parallelized
+	 * @return the number of workers that should process the tasks
+	 */
+	protected int getThreads(final int nTasks) {
+		return workers().threads(nTasks);
+	}
+
+	/**
+	 * Runs the specified worker in parallel, blocking until all instances
+	 * complete. Workers are expected to pull tasks from a shared queue until it
+	 * is exhausted or {@link #terminate()} is called.
+	 *
+	 * @param nWorkers the number of workers
+	 * @param worker   the worker. It is given its (0-based) worker index.
+	 */
+	protected void runWorkers(final int nWorkers, final IntConsumer worker) {
+		workers().run(nWorkers, worker);
+	}
+
+	/**
+	 * @param costs the estimated cost of each task
+	 * @return the task indices sorted by decreasing cost (ties are kept in
+	 *         index order)
+	 */
+	protected static int[] orderByDescendingCost(final double[] costs) {
+		return IntStream.range(0, costs.length).boxed()
+				.sorted((i, j) -> Double.compare(costs[j], costs[i])).mapToInt(i -> i).toArray();
+	}
+
+	/*
+	 * Direct reader for the specified (1-based) slice of the analyzed
+	 * channel/frame. Memory-mapped stacks are read in place
+	 */
+	PixelReader getPixelReader(final int slice) {
+		final int index = imp.getStackIndex(channel, slice, frame);
+		final ImageStack stack = imp.getStack();
+		if (stack instanceof MappedTiffStack)
+			return ((MappedTiffStack) stack).getPixelReader(index, lowerT, upperT);
+		if (stack.isVirtual())
+			return PixelReader.create(sliceCache(stack).getPixels(index), imp.getWidth(), imp.getHeight(), lowerT,
+					upperT);
+		return PixelReader.create(imp.getStack().getPixels(index), imp.getWidth(), imp.getHeight(), lowerT, upperT);
+	}
+
+	/*
+	 * Decodes the specified (1-based) slice of the analyzed channel/frame in
+	 * the background, if the image is a virtual stack. Parsers traversing the
+	 * volume slab by slab call this for the slices of the upcoming slab
+	 */
+	void prefetchSlice(final int slice) {
+		final ImageStack stack = imp.getStack();
+		if (slice < 1 || slice > imp.getNSlices() || !stack.isVirtual() || stack instanceof MappedTiffStack)
+			return;
+		sliceCache(stack).prefetch(imp.getStackIndex(channel, slice, frame));
+	}
+
+	private SliceCache sliceCache(final ImageStack stack) {
+		SliceCache cache = sliceCache;
+		if (cache == null || cache.getStack() != stack) {
+			cache = new SliceCache(stack, Runtime.getRuntime().maxMemory() / 4);
+			sliceCache = cache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Sets the cache of decoded slices used when parsing virtual stacks, e.g.,
+	 * so that a cache can be shared by several parsers of the same image. By
+	 * default, each parser creates its own cache, bounded by a quarter of the
+	 * maximum heap size. Slices are prefetched in the background ahead of
+	 * parsing.
+	 *
+	 * @param cache the slice cache. It is ignored if it caches a different
+	 *              stack.
+	 */
+	public void setSliceCache(final SliceCache cache) {
+		sliceCache = cache;
+	}
+
+	public SliceCache getSliceCache() {
+		return sliceCache;
+	}
+
 	protected void clearStatus() {
 		statusService.showStatus(0, 0, "Finished. " + ShollUtils.getElapsedTime(start));
 	}
@@ -405,6 +1060,21 @@ public class ImageParser extends ContextCommand implements Parser {
 		checkUnsetFields();
 		if (UNSET.equals(properties.getProperty(KEY_HEMISHELLS, UNSET)))
 			setHemiShells(HEMI_NONE);
+		if (insideOut())
+			Collections.sort(radii);
+		if (centerProfiles != null) {
+			// Profiles of the previous multi-center parse are left untouched
+			profile = cleanProfile(properties);
+			properties = profile.getProperties();
+			centerProfiles = null;
+		} else {
+			properties.remove(KEY_INCOMPLETE);
+			properties.remove(KEY_STOP_RADIUS);
+			properties.remove(KEY_STOP_REASON);
+		}
+		running = true;
+		timedOut = false;
+		deadline = System.nanoTime() + timeBudget;
 		start = System.currentTimeMillis();
 		// remainder implemented by parsers extending this class
 	}
@@ -416,7 +1086,11 @@ public class ImageParser extends ContextCommand implements Parser {
 
 	@Override
 	public boolean successful() {
-		return !profile.isEmpty();
+		for (final Profile p : getProfiles()) {
+			if (!p.isEmpty())
+				return true;
+		}
+		return false;
 	}
 
 	@Override
@@ -426,6 +1100,7 @@ public class ImageParser extends ContextCommand implements Parser {
 
 	public void reset() {
 		initProfile();
+		centerProfiles = null;
 	}
 
 	@Override
@@ -21,18 +21,19 @@
  */
 package sholl.parsers;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.scijava.Context;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-import ij.process.TypeConverter;
+import sholl.PointCloud;
 import sholl.ProfileEntry;
 import sholl.UPoint;
 
@@ -41,11 +42,17 @@ import sholl.UPoint;
  */
 public class ImageParser2D extends ImageParser {
 
-	private ImageProcessor ip;
+	private ForegroundMask mask;
 	private final boolean doSpikeSupression;
 	private int nSpans;
 	private int spanType;
 	private int slice;
+	private boolean multiThreaded;
+	private double[][] binSamples;
+	private AtomicIntegerArray pendingSamples;
+	private EmptyShellTracker tracker;
+	private List<Set<UPoint>> binPoints;
+	private AtomicInteger sampledTasks;
 
 	/** Flag for integration of repeated measures: average */
 	public static final int MEAN = 0;
@@ -64,6 +71,7 @@ public class ImageParser2D extends ImageParser {
 		super(imp, context);
 		setPosition(imp.getC(), imp.getZ(), imp.getT());
 		doSpikeSupression = true;
+		multiThreaded = true;
 	}
 
 	public void setCenterPx(final int x, final int y) {
@@ -106,70 +114,214 @@ public class ImageParser2D extends ImageParser {
 		spanType = integrationFlag;
 	}
 
+	/**
+	 * Sets whether radii (and their span samples) should be sampled in
+	 * parallel. Results are identical to those of sequential parsing.
+	 *
+	 * @param multiThreaded if true (the default) sampling is distributed
+	 *                      across {@link ij.Prefs#getThreads()} threads, or
+	 *                      across the {@link #setExecutorService(java.util.concurrent.ExecutorService)
+	 *                      shared executor}, if set
+	 */
+	public void setMultiThreaded(final boolean multiThreaded) {
+		this.multiThreaded = multiThreaded;
+	}
+
+	public boolean isMultiThreaded() {
+		return multiThreaded;
+	}
+
 	@Override
 	public void parse() {
 		super.parse();
-		ip = getProcessor();
+		if (isMultiCenter()) {
+			parseCenters();
+			return;
+		}
+		if (isIndexed()) {
+			mask = indexedMask(slice - 1, slice - 1);
+		} else {
+			mask = new ForegroundMask(minX, maxX, minY, maxY, slice - 1, slice - 1);
+			if (!mask.fill(slice - 1, getPixelReader(slice), this::proceed))
+				mask = null;
+		}
+		if (mask == null) {
+			recordStop(null, 0);
+			clearStatus();
+			return;
+		}
+		if (loadCachedProfile(mask)) {
+			mask = null;
+			clearStatus();
+			return;
+		}
+		sampleRadii();
+		storeCachedProfile();
+		mask = null;
+		clearStatus();
+	}
 
-		double[] binsamples;
-		int[] pixels;
-		int[][] points;
+	/*
+	 * Multi-center mode: The slice is thresholded only once, over the union of
+	 * the bounds of all centers. Radii are then sampled around each center in
+	 * turn, exactly as if each center was parsed on its own
+	 */
+	private void parseCenters() {
+		final int[] bounds = union(centersBounds());
+		mask = new ForegroundMask(bounds[0], bounds[1], bounds[2], bounds[3], slice - 1, slice - 1);
+		final boolean filled = mask.fill(slice - 1, getPixelReader(slice), this::proceed);
+		for (int c = 0; c < centersCount(); c++) {
+			selectCenter(c);
+			if (filled && proceed())
+				sampleRadii();
+			else
+				recordStop(null, 0);
+		}
+		selectCenter(0);
+		mask = null;
+		clearStatus();
+	}
 
+	/* Samples all radii around the current center */
+	private void sampleRadii() {
 		final int size = radii.size();
 
-		// Create array for bin samples. Passed value of binSize must be at
-		// least 1
-		binsamples = new double[nSpans];
-
-		statusService.showStatus(
-				"Sampling " + size + " radii, " + nSpans + " measurement(s) per radius. Press 'Esc' to abort...");
-
-		// Outer loop to control the analysis bins
-		int i = 0;
-		for (final Double radius : radii) {
+		// In adaptive mode, radii are sampled only up to the foreground
+		// bounding box. Rings are measured in pixels, and may
+		// be sampled up to nSpans pixels below their radius
+		final int nRadii = adaptiveEndRadius
+				? shellsWithinForeground(mask.foregroundBounds(new int[] { minX, maxX, minY, maxY, slice - 1, slice - 1 }),
+						voxelSize, voxelSize, 0, (nSpans + 1) * voxelSize)
+				: size;
+		tracker = adaptiveEndRadius && nRadii > 0 ? new EmptyShellTracker(nRadii, maxEmptyShells) : null;
+		final int nTasks = nRadii * nSpans;
+		binSamples = new double[size][nSpans];
+		pendingSamples = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++)
+			pendingSamples.set(i, nSpans);
+		binPoints = new ArrayList<>(nTasks);
+		for (int t = 0; t < nTasks; t++)
+			binPoints.add(null);
+		sampledTasks = new AtomicInteger(0);
+
+		final int nThreads = multiThreaded ? getThreads(nTasks) : 1;
+		statusService.showStatus("Sampling " + size + " radii, " + nSpans + " measurement(s) per radius"
+				+ ((nThreads > 1) ? " (" + nThreads + " threads)" : "") + ". Press 'Esc' to abort...");
+
+		// Workers pull tasks from a shared queue, largest circumferences first
+		// (or smallest first, when parsing from the inside out)
+		final int[] queue;
+		if (insideOut()) {
+			queue = IntStream.range(0, nTasks).toArray();
+		} else {
+			final double[] costs = new double[nTasks];
+			for (int t = 0; t < nTasks; t++)
+				costs[t] = radii.get(t / nSpans) - (t % nSpans) * voxelSize;
+			queue = orderByDescendingCost(costs);
+		}
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		runWorkers(nThreads, worker -> {
+			for (int q = nextTask.getAndIncrement(); q < nTasks; q = nextTask.getAndIncrement()) {
+				if (!proceed() || (tracker != null && queue[q] / nSpans > tracker.limit()))
+					return;
+				sample(queue[q]);
+			}
+		});
+		recordStop(tracker, nRadii);
 
-			// Retrieve the radius in pixel coordinates and set the largest
-			// radius of this bin span
-			int intRadius = (int) Math.round(radius / voxelSize + nSpans / 2);
-			final Set<UPoint> pointsList = new HashSet<>();
+		binSamples = null;
+		pendingSamples = null;
+		binPoints = null;
+		tracker = null;
+	}
 
-			// Inner loop to gather samples for each sample
-			for (int s = 0; s < nSpans; s++) {
+	@Override
+	protected String parsingParameters() {
+		return super.parsingParameters() + ";slice=" + slice + ";spans=" + nSpans + "," + spanType
+				+ ";spikeSuppression=" + doSpikeSupression;
+	}
 
-				if (intRadius < 1)
-					break;
+	/* Samples the circumference of the radius/span pair associated with task */
+	private void sample(final int task) {
+		final int i = task / nSpans;
+		final int s = task % nSpans;
+
+		// Retrieve the radius in pixel coordinates: The largest radius of
+		// the span is sampled first
+		final int intRadius = (int) Math.round(radii.get(i) / voxelSize + nSpans / 2) - s;
+		if (intRadius < 1) {
+			binSamples[i][s] = 0;
+			if (!countsOnly)
+				binPoints.set(task, new PointCloud(0));
+		} else if (countsOnly) {
+			// Only the number of intersections is needed
+			binSamples[i][s] = ringRepresentatives(getTargetCircumferencePoints(intRadius)).length;
+		} else {
+			// Get the foreground circumference pixels for this int radius and
+			// count the number of intersections
+			final Set<UPoint> thisBinIntersPoints = groupRingPositions(getTargetCircumferencePoints(intRadius));
+			binSamples[i][s] = thisBinIntersPoints.size();
+			binPoints.set(task, thisBinIntersPoints);
+		}
+		statusService.showProgress(sampledTasks.incrementAndGet(), binPoints.size());
 
-				// Get the circumference pixels for this int radius
-				points = getCircumferencePoints(xc, yc, intRadius--);
-				pixels = getPixels(points);
+		// The last sample of a radius completes its entry. Radii with missing
+		// samples (i.e., if parsing was aborted) are never added
+		if (pendingSamples.decrementAndGet(i) == 0)
+			addEntry(i);
+	}
 
-				// Count the number of intersections
-				final Set<UPoint> thisBinIntersPoints = targetGroupsPositions(pixels, points);
-				binsamples[s] = thisBinIntersPoints.size();
-				pointsList.addAll(thisBinIntersPoints);
-			}
-			statusService.showProgress(i++, size * nSpans);
-
-			// Statistically combine bin data
-			double counts = 0;
-			if (nSpans > 1) {
-				if (spanType == MEDIAN) { // 50th percentile
-					counts = StatUtils.percentile(binsamples, 50);
-				} else if (spanType == MEAN) { // mean
-					counts = StatUtils.mean(binsamples);
-				} else if (spanType == MODE) { // the 1st max freq. element
-					counts = StatUtils.mode(binsamples)[0];
-				}
-			} else { // There was only one sample
-				counts = binsamples[0];
+	/* Statistically combines the samples of the specified radius index */
+	private void addEntry(final int i) {
+		PointCloud pointsList = null;
+		if (!countsOnly) {
+			pointsList = new PointCloud();
+			for (int s = 0; s < nSpans; s++)
+				pointsList.addAll(binPoints.get(i * nSpans + s));
+		}
+		double counts = 0;
+		if (nSpans > 1) {
+			if (spanType == MEDIAN) { // 50th percentile
+				counts = StatUtils.percentile(binSamples[i], 50);
+			} else if (spanType == MEAN) { // mean
+				counts = StatUtils.mean(binSamples[i]);
+			} else if (spanType == MODE) { // the 1st max freq. element
+				counts = StatUtils.mode(binSamples[i])[0];
 			}
-			profile.add(new ProfileEntry(radius, counts, pointsList));
-
+		} else { // There was only one sample
+			counts = binSamples[i][0];
 		}
+		final ProfileEntry entry = new ProfileEntry(radii.get(i), counts, pointsList);
+		profile.add(entry);
+		fireEntryParsed(entry);
+		if (tracker != null)
+			tracker.parsed(i, counts == 0);
+	}
 
-		clearStatus();
+	/*
+	 * Retrieves the circumference points of the specified radius that are within
+	 * bounds and threshold, in ring order, without allocating the whole ring
+	 */
+	private int[][] getTargetCircumferencePoints(final int radius) {
+		final CircleOffsets offsets = CircleOffsets.get(radius);
+		final int n = offsets.size();
+		final int[] targets = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (withinBoundsAndThreshold(xc + offsets.dx(i), yc + offsets.dy(i)))
+				targets[count++] = i;
+		}
+		final int[][] points = new int[count][];
+		for (int i = 0; i < count; i++)
+			points[i] = new int[] { xc + offsets.dx(targets[i]), yc + offsets.dy(targets[i]) };
+		return points;
 	}
 
+	/**
+	 * @deprecated Foreground points are now retrieved directly, in ring order,
+	 *             and grouped by {@link #groupRingPositions(int[][])}
+	 */
+	@Deprecated
 	protected Set<UPoint> targetGroupsPositions(final int[] pixels, final int[][] rawpoints) {
 
 		int i, j;
@@ -188,125 +340,47 @@ public class ImageParser2D extends ImageParser {
 			if (pixels[i] != 0.0)
 				points[j++] = rawpoints[i];
 
-		return groupPositions(points);
+		return groupRingPositions(points);
 
 	}
 
-	private void removeSinglePixels(final int[][] points, final int pointsLength, final int[] grouping,
-			final HashSet<Integer> positions) {
-
-		for (int i = 0; i < pointsLength; i++) {
-
-			// Check for other members of this group
-			boolean multigroup = false;
-			for (int j = 0; j < pointsLength; j++) {
-				if (i == j)
-					continue;
-				if (grouping[i] == grouping[j]) {
-					multigroup = true;
-					break;
-				}
-			}
-
-			// If not a single-pixel group, try again
-			if (multigroup)
-				continue;
-
-			// Store the coordinates of this point
-			final int dx = points[i][0];
-			final int dy = points[i][1];
-
-			// Calculate the 8 neighbors surrounding this point
-			final int[][] testpoints = new int[8][2];
-			testpoints[0][0] = dx - 1;
-			testpoints[0][1] = dy + 1;
-			testpoints[1][0] = dx;
-			testpoints[1][1] = dy + 1;
-			testpoints[2][0] = dx + 1;
-			testpoints[2][1] = dy + 1;
-			testpoints[3][0] = dx - 1;
-			testpoints[3][1] = dy;
-			testpoints[4][0] = dx + 1;
-			testpoints[4][1] = dy;
-			testpoints[5][0] = dx - 1;
-			testpoints[5][1] = dy - 1;
-			testpoints[6][0] = dx;
-			testpoints[6][1] = dy - 1;
-			testpoints[7][0] = dx + 1;
-			testpoints[7][1] = dy - 1;
-
-			// Pull out the pixel values for these points
-			final int[] px = getPixels(testpoints);
-
-			// Now perform the stair checks
-			if ((px[0] != 0 && px[1] != 0 && px[3] != 0 && px[4] == 0 && px[6] == 0 && px[7] == 0)
-					|| (px[1] != 0 && px[2] != 0 && px[4] != 0 && px[3] == 0 && px[5] == 0 && px[6] == 0)
-					|| (px[4] != 0 && px[6] != 0 && px[7] != 0 && px[0] == 0 && px[1] == 0 && px[3] == 0)
-					|| (px[3] != 0 && px[5] != 0 && px[6] != 0 && px[1] == 0 && px[2] == 0 && px[4] == 0)) {
-
-				positions.remove(i);
-			}
-
-		}
+	/**
+	 * Groups 8-connected circumference points in linear time. Points are
+	 * expected in the order retrieved by {@link #getCircumferencePoints(int, int, int)},
+	 * i.e., walking around the circle (possibly with gaps).
+	 *
+	 * @param points the ordered circumference points
+	 * @return the first point (in sequence order) of each group, excluding
+	 *         single-point 'stair' spikes if spike suppression is enabled
+	 * @see RingGroups
+	 */
+	protected Set<UPoint> groupRingPositions(final int[][] points) {
+		final int[] representatives = ringRepresentatives(points);
+		final PointCloud sPoints = new PointCloud(representatives.length);
+		final double z = cal.getZ(0);
+		for (final int i : representatives)
+			sPoints.add(cal.getX(points[i][0]), cal.getY(points[i][1]), z);
+		return sPoints;
+	}
 
+	private int[] ringRepresentatives(final int[][] points) {
+		return RingGroups.representatives(points, doSpikeSupression, this::withinBoundsAndThreshold);
 	}
 
+	/**
+	 * @deprecated Use {@link #groupRingPositions(int[][])}. Points are now
+	 *             grouped in linear time, and are expected in ring order
+	 */
+	@Deprecated
 	protected Set<UPoint> groupPositions(final int[][] points) {
-
-		int target, source, len;
-
-		// Create an array to hold the point grouping data
-		final int[] grouping = new int[len = points.length];
-
-		// Initialize each point to be in a unique group
-		final HashSet<Integer> positions = new HashSet<>();
-		for (int i = 0; i < len; i++) {
-			grouping[i] = i + 1;
-			positions.add(i);
-		}
-
-		for (int i = 0; i < len; i++) {
-			for (int j = 0; j < len; j++) {
-
-				// Don't compare the same point with itself
-				if (i == j)
-					continue;
-
-				// Compute the chessboard (Chebyshev) distance. A distance of 1
-				// underlies 8-connectivity
-				final UPoint p1 = new UPoint(points[i][0], points[i][1]);
-				final UPoint p2 = new UPoint(points[j][0], points[j][1]);
-
-				// Should these two points be in the same group?
-				if ((p1.chebyshevXYdxTo(p2) <= 1) && (grouping[i] != grouping[j])) {
-
-					// Record which numbers we're changing
-					source = grouping[i];
-					target = grouping[j];
-
-					// Change all targets to sources
-					for (int k = 0; k < len; k++)
-						if (grouping[k] == target)
-							grouping[k] = source;
-
-					// Remove redundant position
-					positions.remove(j);
-				}
-
-			}
-		}
-
-		if (doSpikeSupression) {
-			removeSinglePixels(points, len, grouping, positions);
-		}
-
-		final Set<UPoint> sPoints = new HashSet<>();
-		for (final Integer pos : positions)
-			sPoints.add(new UPoint(points[pos][0], points[pos][1], cal));
-
-		return sPoints;
+		return groupRingPositions(points);
 	}
 
+	/**
+	 * @deprecated Foreground points are now retrieved directly, without
+	 *             retrieving the values of background points
+	 */
+	@Deprecated
 	protected int[] getPixels(final int[][] points) {
 
 		// Initialize the array to hold the pixel values. int arrays are
@@ -327,7 +401,7 @@ public class ImageParser2D extends ImageParser {
 	}
 
 	protected boolean withinBoundsAndThreshold(final int x, final int y) {
-		return withinXYbounds(x, y) && withinThreshold(ip.getPixel(x, y));
+		return withinXYbounds(x, y) && mask.get(x, y, slice - 1);
 	}
 
 	public void setPosition(final int channel, final int slice, final int frame) {
@@ -338,12 +412,4 @@ public class ImageParser2D extends ImageParser {
 		properties.setProperty(KEY_SLICE_POS, String.valueOf(slice));
 		super.setPosition(channel, frame);
 	}
-
-	private ImageProcessor getProcessor() {
-		imp.setPositionWithoutUpdate(channel, slice, frame);
-		final ImageProcessor ip = imp.getChannelProcessor();
-		if (ip instanceof FloatProcessor || ip instanceof ColorProcessor)
-			return new TypeConverter(ip, false).convertToShort();
-		return ip;
-	}
 }
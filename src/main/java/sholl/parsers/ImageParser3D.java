@@ -22,19 +22,17 @@
 package sholl.parsers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import org.scijava.Context;
-import org.scijava.thread.ThreadService;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.Prefs;
-import ij.plugin.ChannelSplitter;
-import ij.util.ThreadUtil;
+import sholl.Profile;
 import sholl.ProfileEntry;
 import sholl.UPoint;
 
@@ -46,13 +44,16 @@ import sholl.UPoint;
 public class ImageParser3D extends ImageParser {
 
 	private double vxW, vxH, vxD;
-	private int progressCounter;
 	private boolean skipSingleVoxels;
-	private ImageStack stack;
-	private final int nCPUs;
-	private final ThreadService threadService;
-	private final AtomicInteger ai;
-	private int nSamples;
+	private ForegroundMask mask;
+	private ForegroundIndex index;
+	private DistanceMap distances;
+	private ShellSampler sampler;
+	private int[] box; // parsing bounds, as {minX, maxX, minY, maxY, minZ, maxZ}
+	private boolean singlePass;
+
+	/* Number of indexed voxels binned by each task of the single-pass engine */
+	private static final int INDEX_CHUNK = 1 << 16;
 
 	@Deprecated
 	public ImageParser3D(final ImagePlus imp) {
@@ -62,171 +63,544 @@ public class ImageParser3D extends ImageParser {
 	public ImageParser3D(final ImagePlus imp, final Context context) {
 		super(imp, context);
 		skipSingleVoxels = true;
+		singlePass = true;
 		setPosition(imp.getC(), imp.getT());
-		threadService = context.getService(ThreadService.class);
-		ai = new AtomicInteger(0);
-		nCPUs = Prefs.getThreads();
 	}
 
 	@Override
 	public void parse() {
 		super.parse();
-		nSamples = radii.size();
-		stack = (imp.isComposite()) ? ChannelSplitter.getChannel(imp, channel) : imp.getStack();
+		sampler = new ShellSampler(workers(), this::proceed, cal, countsOnly, this::fireEntryParsed);
+		if (isMultiCenter()) {
+			parseCenters();
+			return;
+		}
+		if (isIndexed()) {
+			mask = indexedMask(0, imp.getNSlices() - 1);
+			index = getForegroundIndex();
+		} else {
+			mask = buildMask();
+			index = null;
+		}
+		if (mask == null || !proceed()) {
+			recordStop(null, 0);
+			return;
+		}
+		if (loadCachedProfile(mask)) {
+			clearStatus();
+			return;
+		}
 		vxW = cal.pixelWidth;
 		vxH = cal.pixelHeight;
 		vxD = cal.pixelDepth;
+		distances = getDistanceMap();
+		box = new int[] { minX, maxX, minY, maxY, minZ, maxZ };
+		if (singlePass && getTimeBudget(TimeUnit.NANOSECONDS) == 0) {
+			parseSinglePass();
+			return;
+		}
 
-		// Split processing across the number of available CPUs
-		final Thread[] threads = new Thread[nCPUs];
-		setThreadedCounter(0);
-
-		for (int ithread = 0; ithread < threads.length; ithread++) {
-			final int chunkSize = (nSamples + nCPUs - 1) / nCPUs; // divide by
-																	// threads
-																	// rounded
-																	// up.
-			final int start = ithread * chunkSize;
-			final int end = Math.min(start + chunkSize, nSamples);
-			threads[ithread] = threadService.newThread(new ChunkParser(start, end));
-		}
-		ThreadUtil.startAndJoin(threads);
-
-	}
-
-	private class ChunkParser implements Runnable {
-
-		private final int start;
-		private final int end;
-
-		public ChunkParser(final int start, final int end) {
-			this.start = start;
-			this.end = end;
-		}
-
-		@Override
-		public void run() {
-
-			for (int k = ai.getAndIncrement(); k < nCPUs; k = ai.getAndIncrement()) {
-				for (int s = start; s < end; s++) {
-
-					final int counter = getThreadedCounter();
-					statusService.showStatus(counter, nSamples, "Sampling shell " +
-						counter + "/" + nSamples + " (" + nCPUs + " threads)");
-					setThreadedCounter(counter + 1);
-
-					// Initialize ArrayLists to hold surface points
-					final ArrayList<UPoint> pixelPoints = new ArrayList<>();
-
-					// Restrain analysis to the smallest volume for this
-					// sphere
-					final double r = radii.get(s);
-					final double upperR = r + voxelSize;
-					final double lowerR = r - voxelSize;
-					final int xr = (int) Math.round(r / vxW);
-					final int yr = (int) Math.round(r / vxH);
-					final int zr = (int) Math.round(r / vxD);
-					final int xmin = Math.max(xc - xr, minX);
-					final int ymin = Math.max(yc - yr, minY);
-					final int zmin = Math.max(zc - zr, minZ);
-					final int xmax = Math.min(xc + xr, maxX);
-					final int ymax = Math.min(yc + yr, maxY);
-					final int zmax = Math.min(zc + zr, maxZ);
-
-					for (int z = zmin; z <= zmax; z++) {
-						for (int y = ymin; y <= ymax; y++) {
-							for (int x = xmin; x <= xmax; x++) {
-
-								if (!running)
-									return;
-								final UPoint p = new UPoint(x, y, z, cal);
-								final double dxSq = p.distanceSquared(center);
-								if (dxSq > lowerR * lowerR && dxSq < upperR * upperR) {
-									if (!withinThreshold(stack.getVoxel(x, y, z)))
-										continue;
-									if (skipSingleVoxels && !hasNeighbors(x, y, z))
-										continue;
-									pixelPoints.add(new UPoint(x, y, z, UPoint.NONE));
-								}
+		// Shell-by-shell engine: Workers pull shells from a shared queue,
+		// outer (costlier) shells first so that no worker is left with a
+		// long tail of expensive shells. In adaptive mode (or under a time
+		// budget), shells are pulled from the inside out instead
+		final int nShells = adaptiveEndRadius ? shellsWithinForeground() : radii.size();
+		final EmptyShellTracker tracker = adaptiveEndRadius && nShells > 0
+				? new EmptyShellTracker(nShells, maxEmptyShells) : null;
+		final int[] queue;
+		if (insideOut()) {
+			queue = IntStream.range(0, nShells).toArray();
+		} else {
+			final double[] costs = new double[nShells];
+			for (int i = 0; i < nShells; i++)
+				costs[i] = radii.get(i);
+			queue = orderByDescendingCost(costs);
+		}
+		final int nThreads = getThreads(nShells);
+		final AtomicInteger nextShell = new AtomicInteger(0);
+		final AtomicInteger sampledShells = new AtomicInteger(0);
+		final Profile[] fragments = new Profile[nThreads];
+		runWorkers(nThreads, worker -> {
+			final Profile fragment = fragments[worker] = new Profile();
+			for (int q = nextShell.getAndIncrement(); q < nShells; q = nextShell.getAndIncrement()) {
+				if (!proceed() || (tracker != null && queue[q] > tracker.limit()))
+					return;
+				final int counter = sampledShells.incrementAndGet();
+				statusService.showStatus(counter, nShells, "Sampling shell " + counter + "/" + nShells + " ("
+						+ nThreads + " threads)");
+				final ProfileEntry entry = parseShell(queue[q]);
+				if (entry != null) {
+					fragment.add(entry);
+					fireEntryParsed(entry);
+					if (tracker != null)
+						tracker.parsed(queue[q], entry.count == 0);
+				}
+			}
+		});
+		mergeFragments(fragments);
+		recordStop(tracker, nShells);
+		storeCachedProfile();
+		clearStatus();
+	}
+
+	@Override
+	protected String parsingParameters() {
+		return super.parsingParameters() + ";skipSingleVoxels=" + skipSingleVoxels;
+	}
 
+	/* Shells intercept voxels up to one (isotropic) voxel below their radius */
+	private int shellsWithinForeground() {
+		return shellsWithinForeground(mask, vxW, vxH, vxD, voxelSize);
+	}
+
+	/* Samples the shell of the specified radius index. Returns null if aborted */
+	private ProfileEntry parseShell(final int radiusIndex) {
+
+		// Restrain analysis to the smallest volume for this
+		// sphere
+		final double r = radii.get(radiusIndex);
+		final double upperR = r + voxelSize;
+		final double lowerR = r - voxelSize;
+		final double upperSq = upperR * upperR;
+		final double lowerSq = lowerR * lowerR;
+		final int xr = (int) Math.round(r / vxW);
+		final int yr = (int) Math.round(r / vxH);
+		final int zr = (int) Math.round(r / vxD);
+		final int xmin = Math.max(xc - xr, minX);
+		final int ymin = Math.max(yc - yr, minY);
+		final int zmin = Math.max(zc - zr, minZ);
+		final int xmax = Math.min(xc + xr, maxX);
+		final int ymax = Math.min(yc + yr, maxY);
+		final int zmax = Math.min(zc + zr, maxZ);
+
+		final VoxelList shellVoxels = new VoxelList();
+		if (index != null) {
+			// Indexed: The foreground voxels within the band are a contiguous
+			// range of the index. They are sorted in scan order, so that
+			// clustering retrieves the same points of a scan
+			final int last = index.firstAtOrAbove(upperSq);
+			for (int k = index.firstAbove(lowerSq); k < last; k++) {
+				if ((k & 0xFFF) == 0 && !proceed())
+					return null;
+				final int x = index.x(k);
+				final int y = index.y(k);
+				final int z = index.z(k);
+				if (x < xmin || x > xmax || y < ymin || y > ymax || z < zmin || z > zmax)
+					continue;
+				if (skipSingleVoxels && !hasNeighbors(x, y, z))
+					continue;
+				shellVoxels.add(x, y, z);
+			}
+			shellVoxels.sort();
+		} else {
+			// Sparse, primitive-only scan: For each row, only the
+			// x-interval(s) intercepting the band are visited
+			final int[] intervals = new int[4];
+			for (int z = zmin; z <= zmax; z++) {
+				final double dzSq = distances.zSq(z);
+				for (int y = ymin; y <= ymax; y++) {
+					if (!proceed())
+						return null;
+					final double dySq = distances.ySq(y);
+					final int nIntervals = bandIntervals(dySq + dzSq, lowerSq, upperSq, xmin, xmax, intervals);
+					for (int iv = 0; iv < nIntervals; iv++) {
+						final int end = intervals[2 * iv + 1];
+						for (int x = mask.nextForeground(intervals[2 * iv], y, z); x >= 0 && x <= end; x = mask
+								.nextForeground(x + 1, y, z)) {
+							// exact test: intervals are slightly padded
+							final double dSq = distances.xSq(x) + dySq + dzSq;
+							if (dSq > lowerSq && dSq < upperSq) {
+								if (skipSingleVoxels && !hasNeighbors(x, y, z))
+									continue;
+								shellVoxels.add(x, y, z);
 							}
 						}
 					}
-
-					// We now have the the points intercepting the
-					// surface of this shell: Check if they are
-					// clustered and add them in world coordinates
-					// to profile
-					final HashSet<UPoint> points = getUnique3Dgroups(pixelPoints);
-					UPoint.scale(points, cal);
-					profile.add(new ProfileEntry(r, points));
-
 				}
 			}
 		}
 
+		// We now have the the points intercepting the
+		// surface of this shell: Check if they are
+		// clustered and add them in world coordinates
+		// to profile
+		return sampler.entry(r, shellVoxels);
+
 	}
 
-	protected HashSet<UPoint> getUnique3Dgroups(final ArrayList<UPoint> points) {
+	/**
+	 * Single-pass engine: The volume is scanned only once. Each above-threshold
+	 * voxel is assigned to the shell(s) whose surface it intercepts, and each
+	 * shell is then clustered independently. Output is identical to that of
+	 * the shell-by-shell scan, but total work no longer scales with the number
+	 * of shells.
+	 */
+	private void parseSinglePass() {
+
+		// Sort shells so that the candidate shells of a voxel can be bisected
+		final int nShells = adaptiveEndRadius ? shellsWithinForeground() : radii.size();
+		final double[] shellRadii = radii.stream().mapToDouble(d -> d).sorted().limit(nShells).toArray();
+		final ShellBands bands = new ShellBands(shellRadii, voxelSize, vxW, vxH, vxD, xc, yc, zc,
+				skipSingleVoxels ? this::hasNeighbors : null);
+
+		// Pass 1: Scan the volume (or the index) once, binning intercepting
+		// voxels by shell and slice (or index chunk)
+		final VoxelList[][] sliceBins = (index == null)
+				? sampler.scan(mask, box, distances, bands,
+						(counter, nSlices, nThreads) -> statusService.showStatus(counter, nSlices,
+								"Scanning slice " + counter + "/" + nSlices + " (" + nThreads + " threads)"))
+				: scanIndex(bands);
+		if (!proceed()) {
+			recordStop(null, 0);
+			return;
+		}
 
-		for (int i = 0; i < points.size(); i++) {
-			for (int j = i + 1; j < points.size(); j++) {
-
-				final UPoint pi = points.get(i);
-				final UPoint pj = points.get(j);
-				// Compute the chessboard (Chebyshev) distance for this point. A
-				// chessboard distance of 1 in xy (lateral) underlies
-				// 8-connectivity within the plane. A distance of 1 in z (axial)
-				// underlies 26-connectivity in 3D
-				if (pi.chebyshevXYdxTo(pj) * pi.chebyshevZdxTo(pj) < 2) { // int distances: ==1 <=> <2
-					pj.setFlag(UPoint.DELETE);
+		// Pass 2: Cluster the surface points of each shell, most populated
+		// shells first. Indexed voxels are sorted, so that points are
+		// retrieved in the same (z,y,x) order of a shell-by-shell scan
+		final double[] costs = ShellSampler.costs(sliceBins, nShells);
+
+		// In adaptive mode, empty shells are known after the scan: Shells
+		// beyond a run of empty shells are not clustered
+		final EmptyShellTracker tracker = adaptiveEndRadius && nShells > 0
+				? new EmptyShellTracker(nShells, maxEmptyShells) : null;
+		if (tracker != null) {
+			for (int i = 0; i < nShells && !tracker.stopped(); i++)
+				tracker.parsed(i, costs[i] == 0);
+		}
+		final int nClusteredShells = (tracker == null) ? nShells : tracker.limit() + 1;
+		sampler.cluster(sliceBins, shellRadii, Arrays.copyOf(costs, nClusteredShells), index != null, false,
+				profile,
+				(counter, total, nThreads) -> statusService.showStatus(counter, total,
+						"Clustering shell " + counter + "/" + total + " (" + nThreads + " threads)"));
+		recordStop(tracker, nShells);
+		storeCachedProfile();
+		clearStatus();
+	}
+
+	/**
+	 * Multi-center engine: The union of the bounds of all centers is
+	 * thresholded and scanned only once. Each foreground voxel is binned by the
+	 * centers whose bounds contain it (retrieved from a {@link CenterIndex}),
+	 * and the shells of each center are then clustered independently. Output
+	 * is identical to that of parsing each center on its own with the
+	 * single-pass engine.
+	 */
+	private void parseCenters() {
+		vxW = cal.pixelWidth;
+		vxH = cal.pixelHeight;
+		vxD = cal.pixelDepth;
+		index = null;
+		final double[] shellRadii = radii.stream().mapToDouble(d -> d).sorted().toArray();
+		final int nShells = shellRadii.length;
+		final int[][] boxes = centersBounds();
+		final int nCenters = boxes.length;
+		final CenterShells[] centers = new CenterShells[nCenters];
+		for (int c = 0; c < nCenters; c++) {
+			selectCenter(c);
+			centers[c] = new CenterShells(shellRadii, boxes[c]);
+		}
+		final int[] bounds = union(boxes);
+		minX = bounds[0];
+		maxX = bounds[1];
+		minY = bounds[2];
+		maxY = bounds[3];
+		minZ = bounds[4];
+		maxZ = bounds[5];
+		mask = buildMask();
+		if (!proceed()) {
+			recordCentersStop(null, nShells);
+			return;
+		}
+
+		// Pass 1: Scan the union of bounds once, binning intercepting voxels
+		// by slice, center and shell
+		final CenterIndex centerIndex = new CenterIndex(boxes, bounds);
+		final int nSlices = maxZ - minZ + 1;
+		final VoxelList[][][] sliceBins = new VoxelList[nSlices][nCenters][];
+		final AtomicInteger nextSlice = new AtomicInteger(minZ);
+		final AtomicInteger scannedSlices = new AtomicInteger(0);
+		final int nScanThreads = getThreads(nSlices);
+		runWorkers(nScanThreads, worker -> {
+			for (int z = nextSlice.getAndIncrement(); z <= maxZ; z = nextSlice.getAndIncrement()) {
+				final VoxelList[][] bins = sliceBins[z - minZ];
+				final int counter = scannedSlices.incrementAndGet();
+				statusService.showStatus(counter, nSlices, "Scanning slice " + counter + "/" + nSlices + " ("
+						+ nCenters + " centers, " + nScanThreads + " threads)");
+				for (int y = minY; y <= maxY; y++) {
+					if (!proceed())
+						return;
+					for (int x = mask.nextForeground(minX, y, z); x >= 0; x = mask.nextForeground(x + 1, y, z)) {
+						final int cell = centerIndex.cell(x, y, z);
+						for (int k = centerIndex.first(cell); k < centerIndex.end(cell); k++) {
+							final int c = centerIndex.center(k);
+							final CenterShells center = centers[c];
+							if (!center.contains(x, y, z))
+								continue;
+							if (bins[c] == null)
+								bins[c] = new VoxelList[nShells];
+							center.bands.bin(x, y, z, center.distances.xSq(x) + center.distances.ySq(y)
+									+ center.distances.zSq(z), bins[c]);
+						}
+					}
 				}
 			}
+		});
+		if (!proceed()) {
+			recordCentersStop(null, nShells);
+			return;
 		}
 
-		final Iterator<UPoint> it = points.iterator();
-		while (it.hasNext()) {
-			if (it.next().flag == UPoint.DELETE) {
-				it.remove();
+		// Pass 2: Cluster the shells of all centers, most populated first.
+		// In adaptive mode, each center is limited to the shells within its
+		// foreground, and to those before its run of empty shells
+		final EmptyShellTracker[] trackers = new EmptyShellTracker[nCenters];
+		final int[] limits = new int[nCenters];
+		final double[][] costs = new double[nCenters][nShells];
+		int nTasks = 0;
+		for (int c = 0; c < nCenters; c++) {
+			for (final VoxelList[][] bins : sliceBins) {
+				if (bins[c] == null)
+					continue;
+				for (int i = 0; i < nShells; i++)
+					if (bins[c][i] != null)
+						costs[c][i] += bins[c][i].size();
+			}
+			limits[c] = nShells;
+			if (adaptiveEndRadius) {
+				selectCenter(c);
+				limits[c] = shellsWithinForeground(mask.foregroundBounds(boxes[c]), vxW, vxH, vxD, voxelSize);
+				if (limits[c] > 0) {
+					trackers[c] = new EmptyShellTracker(limits[c], maxEmptyShells);
+					for (int i = 0; i < limits[c] && !trackers[c].stopped(); i++)
+						trackers[c].parsed(i, costs[c][i] == 0);
+				}
 			}
+			centers[c].nShells = limits[c];
+			centers[c].nClusteredShells = (trackers[c] == null) ? limits[c] : trackers[c].limit() + 1;
+			nTasks += centers[c].nClusteredShells;
 		}
+		final int[] taskCenter = new int[nTasks];
+		final int[] taskShell = new int[nTasks];
+		final double[] taskCost = new double[nTasks];
+		for (int c = 0, t = 0; c < nCenters; c++) {
+			for (int i = 0; i < centers[c].nClusteredShells; i++, t++) {
+				taskCenter[t] = c;
+				taskShell[t] = i;
+				taskCost[t] = costs[c][i];
+			}
+		}
+		final int[] queue = orderByDescendingCost(taskCost);
+		final int nClusteringTasks = nTasks;
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		final AtomicInteger clusteredShells = new AtomicInteger(0);
+		final int nClusterThreads = getThreads(nTasks);
+		runWorkers(nClusterThreads, worker -> {
+			for (int q = nextTask.getAndIncrement(); q < nClusteringTasks; q = nextTask.getAndIncrement()) {
+				if (!proceed())
+					return;
+				final int c = taskCenter[queue[q]];
+				final int i = taskShell[queue[q]];
+				final int counter = clusteredShells.incrementAndGet();
+				statusService.showStatus(counter, nClusteringTasks, "Clustering shell " + counter + "/"
+						+ nClusteringTasks + " (" + nCenters + " centers, " + nClusterThreads + " threads)");
+				final VoxelList shellVoxels = new VoxelList((int) costs[c][i]);
+				for (final VoxelList[][] bins : sliceBins) {
+					if (bins[c] == null)
+						continue;
+					shellVoxels.addAll(bins[c][i]);
+					bins[c][i] = null; // release memory as soon as possible
+				}
+				final ProfileEntry entry = sampler.entry(shellRadii[i], shellVoxels);
+				centers[c].profile.add(entry);
+				fireEntryParsed(entry);
+			}
+		});
+		for (int c = 0; c < nCenters; c++) {
+			selectCenter(c);
+			recordStop(trackers[c], centers[c].nShells);
+		}
+		selectCenter(0);
+		clearStatus();
+	}
 
-		return new HashSet<>(points);
-
+	/* Records where and why parsing stopped for all centers */
+	private void recordCentersStop(final EmptyShellTracker tracker, final int nShells) {
+		for (int c = centersCount() - 1; c >= 0; c--) {
+			selectCenter(c);
+			recordStop(tracker, nShells);
+		}
 	}
 
-	private boolean hasNeighbors(final int x, final int y, final int z) {
+	/* The shells of a center in multi-center mode, and the bounds they are restricted to */
+	private final class CenterShells {
+
+		private final Profile profile;
+		private final int[] box;
+		private final DistanceMap distances;
+		private final ShellBands bands;
+		private int nShells;
+		private int nClusteredShells;
+
+		/* Assumes the center has been selected */
+		CenterShells(final double[] shellRadii, final int[] box) {
+			profile = ImageParser3D.this.profile;
+			this.box = box;
+			distances = new DistanceMap(imp.getWidth(), imp.getHeight(), imp.getNSlices(), cal, center);
+			bands = new ShellBands(shellRadii, voxelSize, vxW, vxH, vxD, xc, yc, zc,
+					skipSingleVoxels ? this::hasNeighbors : null);
+		}
 
-		final int[][] neighbors = new int[6][3];
-		neighbors[0] = new int[] { x - 1, y, z };
-		neighbors[1] = new int[] { x + 1, y, z };
-		neighbors[2] = new int[] { x, y - 1, z };
-		neighbors[3] = new int[] { x, y + 1, z };
-		neighbors[4] = new int[] { x, y, z + 1 };
-		neighbors[5] = new int[] { x, y, z - 1 };
-
-		for (int i = 0; i < neighbors.length; i++) {
-			try {
-				if (!withinBounds(neighbors[i][0], neighbors[i][1], neighbors[i][2]))
-					return false;
-				if (withinThreshold(stack.getVoxel(neighbors[i][0], neighbors[i][1], neighbors[i][2])))
-					return true;
-			} catch (final IndexOutOfBoundsException ignored) { // Edge voxel?
-																// Neighborhood
-																// unknown.
-				return false;
-			}
+		boolean contains(final int x, final int y, final int z) {
+			return x >= box[0] && x <= box[1] && y >= box[2] && y <= box[3] && z >= box[4] && z <= box[5];
+		}
+
+		/* As ImageParser3D#hasNeighbors(), within the bounds of this center */
+		boolean hasNeighbors(final int x, final int y, final int z) {
+			return mask.hasNeighbors(x, y, z, box);
 		}
-		return false;
+	}
 
+	/*
+	 * Pass 1 of the single-pass engine, when indexed: Only the indexed voxels
+	 * up to the outermost band are visited. Workers pull chunks of the index
+	 */
+	private VoxelList[][] scanIndex(final ShellBands bands) {
+		final int last = index.firstAtOrAbove(bands.outerLimit());
+		final int nChunks = (last + INDEX_CHUNK - 1) / INDEX_CHUNK;
+		final VoxelList[][] chunkBins = new VoxelList[nChunks][];
+		final AtomicInteger nextChunk = new AtomicInteger(0);
+		final AtomicInteger scannedChunks = new AtomicInteger(0);
+		final int nScanThreads = getThreads(nChunks);
+		runWorkers(nScanThreads, worker -> {
+			for (int c = nextChunk.getAndIncrement(); c < nChunks; c = nextChunk.getAndIncrement()) {
+				final VoxelList[] bins = new VoxelList[bands.size()];
+				chunkBins[c] = bins;
+				final int counter = scannedChunks.incrementAndGet();
+				statusService.showStatus(counter, nChunks, "Binning indexed voxels " + counter + "/" + nChunks
+						+ " (" + nScanThreads + " threads)");
+				if (!proceed())
+					return;
+				final int end = Math.min(last, (c + 1) * INDEX_CHUNK);
+				for (int k = c * INDEX_CHUNK; k < end; k++) {
+					final int x = index.x(k);
+					final int y = index.y(k);
+					final int z = index.z(k);
+					if (withinBounds(x, y, z))
+						bands.bin(x, y, z, index.distanceSquared(k), bins);
+				}
+			}
+		});
+		return chunkBins;
 	}
 
-	private int getThreadedCounter() {
-		return progressCounter;
+	/* Merges the entries accumulated by each worker into the profile */
+	private void mergeFragments(final Profile[] fragments) {
+		for (final Profile fragment : fragments)
+			profile.merge(fragment);
 	}
 
-	private void setThreadedCounter(final int updatedCounter) {
-		progressCounter = updatedCounter;
+	/**
+	 * Retains a single point per group of 26-connected points, i.e., points at
+	 * a chessboard (Chebyshev) distance of 1 in 3D. Points must have integer
+	 * (pixel) coordinates.
+	 *
+	 * @param points the list of points to be grouped
+	 * @return the first point (in list order) of each group
+	 */
+	protected HashSet<UPoint> getUnique3Dgroups(final ArrayList<UPoint> points) {
+		final VoxelList voxels = new VoxelList(points.size());
+		for (final UPoint p : points)
+			voxels.add((int) p.x, (int) p.y, (int) p.z);
+		final HashSet<UPoint> groups = new HashSet<>();
+		for (final int i : VoxelClusterer.representatives(voxels))
+			groups.add(points.get(i));
+		return groups;
+	}
+
+	/*
+	 * Checks the 6-connected neighborhood in a fixed order: A neighbor out of
+	 * bounds leaves the neighborhood unknown, and voxel is considered isolated
+	 */
+	private boolean hasNeighbors(final int x, final int y, final int z) {
+		return mask.hasNeighbors(x, y, z, box);
+	}
+
+	/**
+	 * Solves analytically for the x-intervals of a row whose voxels may lie
+	 * within a shell band, i.e., lowerSq < dx^2 + rowSq < upperSq. A row
+	 * intercepts the band at most twice (on either side of the center).
+	 * Intervals are padded by one voxel to absorb rounding errors, so that
+	 * the exact test can be performed by the caller.
+	 *
+	 * @param rowSq     the squared (calibrated) distance from the row to the
+	 *                  center along Y and Z
+	 * @param lowerSq   the squared inner radius of the band
+	 * @param upperSq   the squared outer radius of the band
+	 * @param xmin      the smallest x-coordinate allowed (e.g., hemishell bound)
+	 * @param xmax      the largest x-coordinate allowed
+	 * @param intervals the array (of length 4) storing the (start, end) pairs
+	 *                  of each interval (inclusive)
+	 * @return the number of intervals (0, 1 or 2)
+	 */
+	private int bandIntervals(final double rowSq, final double lowerSq, final double upperSq, final int xmin,
+			final int xmax, final int[] intervals) {
+		if (rowSq >= upperSq || xmin > xmax)
+			return 0;
+		final double cx = center.x / vxW + cal.xOrigin; // center in pixels
+		final double outer = Math.sqrt(upperSq - rowSq) / vxW;
+		final int outerStart = Math.max(xmin, (int) Math.ceil(cx - outer) - 1);
+		final int outerEnd = Math.min(xmax, (int) Math.floor(cx + outer) + 1);
+		if (outerStart > outerEnd)
+			return 0;
+		if (lowerSq <= rowSq) { // row crosses the inner sphere: single run
+			intervals[0] = outerStart;
+			intervals[1] = outerEnd;
+			return 1;
+		}
+		final double inner = Math.sqrt(lowerSq - rowSq) / vxW;
+		final int innerStart = (int) Math.floor(cx - inner) + 1;
+		final int innerEnd = (int) Math.ceil(cx + inner) - 1;
+		if (innerStart >= innerEnd) { // padded intervals overlap
+			intervals[0] = outerStart;
+			intervals[1] = outerEnd;
+			return 1;
+		}
+		int n = 0;
+		if (outerStart <= Math.min(innerStart, outerEnd)) {
+			intervals[2 * n] = outerStart;
+			intervals[2 * n++ + 1] = Math.min(innerStart, outerEnd);
+		}
+		if (Math.max(innerEnd, outerStart) <= outerEnd) {
+			intervals[2 * n] = Math.max(innerEnd, outerStart);
+			intervals[2 * n++ + 1] = outerEnd;
+		}
+		return n;
+	}
+
+	/* Thresholds the volume within bounds into a bit mask, in parallel by slice */
+	private ForegroundMask buildMask() {
+		final ForegroundMask mask = new ForegroundMask(minX, maxX, minY, maxY, minZ, maxZ);
+		final int nSlices = maxZ - minZ + 1;
+		final int nThreads = getThreads(nSlices);
+		final AtomicInteger nextSlice = new AtomicInteger(minZ);
+		final AtomicInteger filledSlices = new AtomicInteger(0);
+		runWorkers(nThreads, worker -> {
+			for (int z = nextSlice.getAndIncrement(); z <= maxZ; z = nextSlice.getAndIncrement()) {
+				if (!proceed())
+					return;
+				// Slab-ordered traversal: While the workers threshold the
+				// current slab of slices, the next one is decoded ahead
+				if (z + nThreads <= maxZ)
+					prefetchSlice(z + nThreads + 1);
+				final int counter = filledSlices.incrementAndGet();
+				statusService.showStatus(counter, nSlices, "Thresholding slice " + counter + "/" + nSlices + " ("
+						+ nThreads + " threads)");
+				if (!mask.fill(z, getPixelReader(z + 1), this::proceed))
+					return;
+			}
+		});
+		return mask;
 	}
 
 	public void setSkipSingleVoxels(final boolean skip) {
@@ -236,4 +610,22 @@ public class ImageParser3D extends ImageParser {
 	public boolean isSkipSingleVoxels() {
 		return skipSingleVoxels;
 	}
+
+	/**
+	 * Sets the parsing engine.
+	 *
+	 * @param singlePass If true (the default) the image is scanned only once,
+	 *                   and voxels are binned by their distance to the center.
+	 *                   This is considerably faster for large volumes and
+	 *                   small step sizes, but requires all the intersecting
+	 *                   voxels to be kept in memory until the end of the scan.
+	 *                   If false, each shell is scanned independently.
+	 */
+	public void setSinglePass(final boolean singlePass) {
+		this.singlePass = singlePass;
+	}
+
+	public boolean isSinglePass() {
+		return singlePass;
+	}
 }
@@ -0,0 +1,460 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.thread.ThreadService;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.WrappedImg;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+import ij.measure.Calibration;
+import sholl.Profile;
+import sholl.ShollUtils;
+import sholl.UPoint;
+
+/**
+ * Parser for 2D and 3D ImgLib2 images. Voxels are read directly from the
+ * {@link RandomAccessibleInterval}, without conversion to an ImagePlus, using
+ * cursors over blocks of data. For cell images (including cell images wrapped
+ * in an {@code ImgPlus} or viewed through an interval), blocks follow the
+ * cell grid, so that each cell of a lazily loaded (cached) image is loaded
+ * only once. Shells are sampled by the single-pass engine of
+ * {@link ImageParser3D}: Above-threshold voxels intercepting a shell are
+ * grouped into 26-connected clusters (8-connected in 2D), each cluster
+ * counting as one intersection.
+ *
+ * @author Tiago Ferreira
+ */
+public class ImgParser<T extends RealType<T>> implements Parser {
+
+	/* Rows (or slices, in 3D) per block when images are not cell images */
+	private static final int BLOCK_ROWS = 64;
+
+	private final RandomAccessibleInterval<T> img;
+	private final int nDims;
+	private final long[] origin;
+	private final double[] spacing;
+	private final double voxelSize;
+	private Profile profile;
+	private Properties properties;
+	private UPoint center;
+	private int xc, yc, zc; // relative to origin
+	private double[] radii;
+	private double lowerT = Double.NaN;
+	private double upperT = Double.NaN;
+	private boolean countsOnly;
+	private boolean skipSingleVoxels = true;
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executorService;
+	private ThreadService threadService;
+	private WorkerPool workers;
+	private int minX, maxX, minY, maxY, minZ, maxZ; // relative to origin
+	private ForegroundMask mask;
+	private final ParseControl control = new ParseControl();
+	private final List<ProfileEntryListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param img     the image (2D or 3D)
+	 * @param spacing the physical size of a pixel along each dimension. If
+	 *                omitted, the image is considered uncalibrated
+	 */
+	public ImgParser(final RandomAccessibleInterval<T> img, final double... spacing) {
+		nDims = img.numDimensions();
+		if (nDims < 2 || nDims > 3)
+			throw new IllegalArgumentException("Only 2D and 3D images are supported");
+		if (spacing.length != 0 && spacing.length < nDims)
+			throw new IllegalArgumentException("Pixel spacing must be specified for all dimensions");
+		this.img = img;
+		origin = new long[nDims];
+		this.spacing = new double[] { 1, 1, 1 };
+		double sum = 0;
+		for (int d = 0; d < nDims; d++) {
+			origin[d] = img.min(d);
+			if (spacing.length > 0) {
+				if (!(spacing[d] > 0))
+					throw new IllegalArgumentException("Pixel spacing must be > 0");
+				this.spacing[d] = spacing[d];
+			}
+			sum += this.spacing[d];
+		}
+		voxelSize = sum / nDims;
+		initProfile();
+	}
+
+	private void initProfile() {
+		profile = new Profile();
+		properties = profile.getProperties();
+		properties.setProperty(KEY_SOURCE, SRC_IMG);
+		profile.setNDimensions(nDims);
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = spacing[0];
+		cal.pixelHeight = spacing[1];
+		cal.pixelDepth = spacing[2];
+		profile.setSpatialCalibration(cal);
+		if (center != null)
+			profile.setCenter(center);
+	}
+
+	/**
+	 * Sets the center of analysis in pixel coordinates.
+	 */
+	public void setCenterPx(final long x, final long y, final long z) {
+		setCenter(x * spacing[0], y * spacing[1], (nDims == 2) ? 0 : z * spacing[2]);
+	}
+
+	/**
+	 * Sets the center of analysis in physical units, i.e., pixel coordinates
+	 * scaled by pixel spacing.
+	 */
+	public void setCenter(final double x, final double y, final double z) {
+		final long px = Math.round(x / spacing[0]);
+		final long py = Math.round(y / spacing[1]);
+		final long pz = (nDims == 2) ? 0 : Math.round(z / spacing[2]);
+		if (px < img.min(0) || px > img.max(0) || py < img.min(1) || py > img.max(1)
+				|| (nDims == 3 && (pz < img.min(2) || pz > img.max(2))))
+			throw new IndexOutOfBoundsException("specified coordinates cannot be aplied to image");
+		center = new UPoint(x, y, (nDims == 2) ? 0 : z);
+		profile.setCenter(center);
+		xc = (int) (px - origin[0]);
+		yc = (int) (py - origin[1]);
+		zc = (nDims == 2) ? 0 : (int) (pz - origin[2]);
+	}
+
+	public void setThreshold(final double lower, final double upper) {
+		if (Double.isNaN(lower) || Double.isNaN(upper) || lower > upper)
+			throw new IllegalArgumentException("Invalid threshold levels: " + lower + "-" + upper);
+		lowerT = lower;
+		upperT = upper;
+		properties.setProperty(KEY_THRESHOLD_RANGE, lower + ":" + upper);
+	}
+
+	public void setRadii(final double startRadius, final double step, final double endRadius) {
+		final double fStartRadius = (Double.isNaN(startRadius)) ? voxelSize : Math.max(voxelSize, startRadius);
+		final double fStep = (Double.isNaN(step)) ? voxelSize : Math.max(step, voxelSize);
+		setRadii(ShollUtils.getRadii(fStartRadius, fStep, endRadius).stream().mapToDouble(r -> r).toArray());
+	}
+
+	public void setRadii(final double[] radiiArray) {
+		if (radiiArray == null)
+			throw new IllegalArgumentException("radii array cannot be null");
+		radii = radiiArray.clone();
+		Arrays.sort(radii);
+	}
+
+	public void setSkipSingleVoxels(final boolean skip) {
+		skipSingleVoxels = skip;
+	}
+
+	public boolean isSkipSingleVoxels() {
+		return skipSingleVoxels;
+	}
+
+	/**
+	 * @param nThreads the number of threads reading and parsing data
+	 */
+	public void setThreads(final int nThreads) {
+		if (nThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be > 0");
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Sets the executor running parallel parsing tasks, so that embedding
+	 * applications can share a single pool across parsers. Parsing blocks until
+	 * all of its tasks complete: Unless the pool has spare threads, parsing
+	 * should not be triggered from one of its own threads.
+	 *
+	 * @param executorService the executor service. If null (the default), each
+	 *                        parsing operation spawns its own threads.
+	 */
+	public void setExecutorService(final ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/**
+	 * @param threadService the service creating the threads spawned when no
+	 *                      {@link #setExecutorService(ExecutorService)
+	 *                      executor} is set. If null (the default), plain
+	 *                      threads are created.
+	 */
+	public void setThreadService(final ThreadService threadService) {
+		this.threadService = threadService;
+	}
+
+	@Override
+	public void setCountsOnly(final boolean countsOnly) {
+		this.countsOnly = countsOnly;
+	}
+
+	@Override
+	public boolean isCountsOnly() {
+		return countsOnly;
+	}
+
+	@Override
+	public void addProfileEntryListener(final ProfileEntryListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeProfileEntryListener(final ProfileEntryListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void parse() {
+		if (center == null || radii == null)
+			throw new IllegalArgumentException("Cannot proceed with undefined parameters");
+		if (Double.isNaN(lowerT) || Double.isNaN(upperT))
+			throw new IllegalArgumentException("Cannot proceed with undefined threshold levels");
+		initProfile();
+		if (radii.length == 0)
+			return;
+		control.start();
+		workers = new WorkerPool(threadService, executorService, nThreads, control::terminate);
+		computeBounds();
+		mask = threshold();
+		if (control.proceed())
+			sample();
+		mask = null;
+		workers = null;
+		control.recordStop(profile);
+	}
+
+	/* Restricts analysis to the box enclosing the largest shell */
+	private void computeBounds() {
+		final double maxR = radii[radii.length - 1] + voxelSize;
+		final int[] c = { xc, yc, zc };
+		final int[] lo = new int[3];
+		final int[] hi = new int[3];
+		for (int d = 0; d < nDims; d++) {
+			final long reach = (long) Math.ceil(maxR / spacing[d]);
+			lo[d] = (int) Math.max(0, c[d] - reach);
+			hi[d] = (int) Math.min(img.dimension(d) - 1, c[d] + reach);
+		}
+		minX = lo[0];
+		maxX = hi[0];
+		minY = lo[1];
+		maxY = hi[1];
+		minZ = lo[2];
+		maxZ = hi[2];
+	}
+
+	/*
+	 * Thresholds the data within bounds into a bit mask. Workers pull blocks
+	 * from a shared queue and iterate each block with a cursor. Blocks may
+	 * share words of the mask: Each worker keeps the foreground it finds by
+	 * slice, and slices are then assembled into the mask independently
+	 */
+	private ForegroundMask threshold() {
+		final ForegroundMask mask = new ForegroundMask(minX, maxX, minY, maxY, minZ, maxZ);
+		final int nSlices = maxZ - minZ + 1;
+		final List<long[]> blocks = blocks();
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		final int nThreads = workers.threads(blocks.size());
+		final VoxelList[][] foreground = new VoxelList[nThreads][nSlices];
+		workers.run(nThreads, worker -> {
+			final VoxelList[] slices = foreground[worker];
+			for (int b = nextBlock.getAndIncrement(); b < blocks.size(); b = nextBlock.getAndIncrement()) {
+				if (!control.proceed())
+					return;
+				final long[] block = blocks.get(b);
+				final long[] min = Arrays.copyOfRange(block, 0, nDims);
+				final long[] max = Arrays.copyOfRange(block, nDims, 2 * nDims);
+				final Cursor<T> cursor = Views.iterable(Views.interval(img, min, max)).localizingCursor();
+				while (cursor.hasNext()) {
+					cursor.fwd();
+					final double value = cursor.get().getRealDouble();
+					if (value >= lowerT && value <= upperT) {
+						final int z = (nDims == 2) ? 0 : (int) (cursor.getLongPosition(2) - origin[2]);
+						if (slices[z - minZ] == null)
+							slices[z - minZ] = new VoxelList();
+						slices[z - minZ].add((int) (cursor.getLongPosition(0) - origin[0]),
+								(int) (cursor.getLongPosition(1) - origin[1]), z);
+					}
+				}
+			}
+		});
+		if (!control.proceed())
+			return mask;
+		final AtomicInteger nextSlice = new AtomicInteger(minZ);
+		workers.run(workers.threads(nSlices), worker -> {
+			for (int z = nextSlice.getAndIncrement(); z <= maxZ; z = nextSlice.getAndIncrement()) {
+				mask.clear(z);
+				for (final VoxelList[] slices : foreground) {
+					final VoxelList voxels = slices[z - minZ];
+					if (voxels == null)
+						continue;
+					for (int i = 0; i < voxels.size(); i++)
+						mask.set(voxels.x(i), voxels.y(i), z);
+					slices[z - minZ] = null; // release memory as soon as possible
+				}
+			}
+		});
+		return mask;
+	}
+
+	/*
+	 * Partitions the bounds into blocks, stored as absolute {min..., max...}
+	 * coordinates. Blocks of cell images are aligned to the cell grid
+	 */
+	private List<long[]> blocks() {
+		final int[] lo = { minX, minY, minZ };
+		final int[] hi = { maxX, maxY, maxZ };
+		final long[] size = new long[nDims];
+		for (int d = 0; d < nDims; d++)
+			size[d] = hi[d] - lo[d] + 1;
+		final CellGrid grid = cellGrid(img);
+		if (grid != null && grid.numDimensions() == nDims) {
+			for (int d = 0; d < nDims; d++)
+				size[d] = grid.cellDimension(d);
+		} else {
+			size[nDims - 1] = Math.min(size[nDims - 1], BLOCK_ROWS);
+		}
+		// Cells are aligned in absolute coordinates
+		final List<long[]> blocks = new ArrayList<>();
+		final long[] start = new long[nDims];
+		for (int d = 0; d < nDims; d++)
+			start[d] = Math.floorDiv(origin[d] + lo[d], size[d]) * size[d];
+		final long[] pos = start.clone();
+		while (true) {
+			final long[] block = new long[2 * nDims];
+			for (int d = 0; d < nDims; d++) {
+				block[d] = Math.max(origin[d] + lo[d], pos[d]);
+				block[nDims + d] = Math.min(origin[d] + hi[d], pos[d] + size[d] - 1);
+			}
+			blocks.add(block);
+			int d = 0;
+			for (; d < nDims; d++) {
+				pos[d] += size[d];
+				if (pos[d] <= origin[d] + hi[d])
+					break;
+				pos[d] = start[d];
+			}
+			if (d == nDims)
+				return blocks;
+		}
+	}
+
+	/*
+	 * Retrieves the cell grid of a cell image, unwrapping ImgPlus (and other
+	 * wrappers) and interval views, which preserve the coordinates of their
+	 * source. Returns null if the image is not backed by a cell image
+	 */
+	private static CellGrid cellGrid(final RandomAccessible<?> source) {
+		Object img = source;
+		while (true) {
+			if (img instanceof AbstractCellImg)
+				return ((AbstractCellImg<?, ?, ?, ?>) img).getCellGrid();
+			if (img instanceof WrappedImg)
+				img = ((WrappedImg<?>) img).getImg();
+			else if (img instanceof IntervalView)
+				img = ((IntervalView<?>) img).getSource();
+			else
+				return null;
+		}
+	}
+
+	/* Bins the foreground by shell, then clusters each shell independently */
+	private void sample() {
+		final int[] box = { minX, maxX, minY, maxY, minZ, maxZ };
+		final ShellBands bands = new ShellBands(radii, voxelSize, spacing[0], spacing[1], spacing[2], xc, yc, zc,
+				skipSingleVoxels ? (x, y, z) -> mask.hasNeighbors(x, y, z, box) : null);
+
+		// Voxel coordinates are relative to origin
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = spacing[0];
+		cal.pixelHeight = spacing[1];
+		cal.pixelDepth = spacing[2];
+		cal.xOrigin = -origin[0];
+		cal.yOrigin = -origin[1];
+		cal.zOrigin = (nDims == 2) ? 0 : -origin[2];
+		final DistanceMap distances = new DistanceMap((int) img.dimension(0), (int) img.dimension(1),
+				(nDims == 2) ? 1 : (int) img.dimension(2), cal, center);
+		final ShellSampler sampler = new ShellSampler(workers, control::proceed, cal, countsOnly, entry -> {
+			for (final ProfileEntryListener listener : listeners)
+				listener.entryParsed(entry);
+		});
+		final VoxelList[][] sliceBins = sampler.scan(mask, box, distances, bands, null);
+		if (control.proceed())
+			sampler.cluster(sliceBins, radii, ShellSampler.costs(sliceBins, bands.size()), false, true, profile,
+					null);
+	}
+
+	@Override
+	public Profile getProfile() {
+		return profile;
+	}
+
+	@Override
+	public boolean successful() {
+		return !profile.isEmpty();
+	}
+
+	@Override
+	public void terminate() {
+		control.terminate();
+	}
+
+	/**
+	 * Sets a time budget for {@link #parse()}. Once the budget is exhausted,
+	 * parsing stops within a block of pixels, and the shells parsed so far
+	 * are retained in a profile flagged as {@link Profile#isIncomplete()
+	 * incomplete}. Shells are clustered from the inside out, so that partial
+	 * profiles are populated from the starting radius.
+	 *
+	 * @param budget the maximum parsing time. Zero (the default) means no
+	 *               limit
+	 * @param unit   the time unit of budget
+	 */
+	@Override
+	public void setTimeBudget(final long budget, final TimeUnit unit) {
+		control.setTimeBudget(budget, unit);
+	}
+
+	public long getTimeBudget(final TimeUnit unit) {
+		return control.getTimeBudget(unit);
+	}
+
+}
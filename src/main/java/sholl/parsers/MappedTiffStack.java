@@ -0,0 +1,400 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Out-of-core, read-only stack backed by an uncompressed TIFF file. Planes are
+ * memory-mapped on demand and parsers read voxels directly from the mapped
+ * pages, so that volumes larger than the available heap can be analyzed: No
+ * plane is ever copied into the heap during parsing. Planes are only copied
+ * when requested by ImageJ itself (e.g., for display).
+ * <p>
+ * Supported files are 8-bit, 16-bit (unsigned) and 32-bit (float) grayscale
+ * TIFFs, either written as a single contiguous block (as done by ImageJ) or
+ * with one image per directory, as long as the strips of each image are
+ * contiguous. Hyperstack dimensions and spatial calibration are retrieved
+ * from ImageJ's TIFF description, if present. Planes larger than 2GB can only
+ * be accessed as {@link #getTileSource(int, int, int) tiles}.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class MappedTiffStack extends VirtualStack implements Closeable {
+
+	private final FileChannel channel;
+	private final FileInfo info;
+	private final long[] offsets;
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final long planeBytes;
+	private final ByteOrder order;
+
+	private MappedTiffStack(final FileChannel channel, final FileInfo[] infos, final int bitDepth)
+			throws IOException {
+		super(infos[0].width, infos[0].height, null, infos[0].directory);
+		this.channel = channel;
+		info = infos[0];
+		width = info.width;
+		height = info.height;
+		this.bitDepth = bitDepth;
+		planeBytes = (long) width * height * (bitDepth / 8);
+		order = info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		if (infos.length == 1) {
+			// A single directory describing a contiguous stack
+			checkContiguousStrips(info);
+			offsets = new long[Math.max(1, info.nImages)];
+			final long gap = info.gapBetweenImages;
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = info.getOffset() + i * (planeBytes + gap);
+		} else {
+			// One directory per image
+			offsets = new long[infos.length];
+			for (int i = 0; i < infos.length; i++) {
+				final FileInfo fi = infos[i];
+				if (fi.width != width || fi.height != height || fi.fileType != info.fileType)
+					throw new IOException("Images of different sizes or types are not supported");
+				checkContiguousStrips(fi);
+				offsets[i] = fi.getOffset();
+			}
+		}
+		final long end = offsets[offsets.length - 1] + planeBytes;
+		if (end > channel.size())
+			throw new IOException("File is truncated: " + end + " bytes expected");
+	}
+
+	private void checkContiguousStrips(final FileInfo fi) throws IOException {
+		if (fi.stripOffsets == null || fi.stripLengths == null)
+			return;
+		long next = fi.getOffset();
+		for (int s = 0; s < fi.stripOffsets.length; s++) {
+			if ((fi.stripOffsets[s] & 0xffffffffL) != next)
+				throw new IOException("Image strips are not contiguous");
+			next += fi.stripLengths[s] & 0xffffffffL;
+		}
+	}
+
+	/**
+	 * Opens a TIFF file for out-of-core access. The file remains open until
+	 * {@link #close()} is called.
+	 *
+	 * @param file the TIFF file
+	 * @return the mapped stack
+	 * @throws IOException if the file could not be read, is compressed, or
+	 *                     stores an unsupported pixel type
+	 */
+	public static MappedTiffStack open(final File file) throws IOException {
+		final String dir = (file.getAbsoluteFile().getParent() == null) ? ""
+				: file.getAbsoluteFile().getParent() + File.separator;
+		final FileInfo[] infos = new TiffDecoder(dir, file.getName()).getTiffInfo();
+		if (infos == null || infos.length == 0)
+			throw new IOException("Not a TIFF file: " + file);
+		for (final FileInfo fi : infos) {
+			if (fi.compression > FileInfo.COMPRESSION_NONE)
+				throw new IOException("Compressed TIFFs cannot be memory-mapped");
+		}
+		final int bitDepth;
+		switch (infos[0].fileType) {
+		case FileInfo.GRAY8:
+			bitDepth = 8;
+			break;
+		case FileInfo.GRAY16_UNSIGNED:
+			bitDepth = 16;
+			break;
+		case FileInfo.GRAY32_FLOAT:
+			bitDepth = 32;
+			break;
+		default:
+			throw new IOException("Unsupported pixel type: Only 8-bit, 16-bit and 32-bit grayscale are supported");
+		}
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new MappedTiffStack(channel, infos, bitDepth);
+		} catch (final IOException | RuntimeException exc) {
+			channel.close();
+			throw exc;
+		}
+	}
+
+	/**
+	 * Wraps this stack in an image, applying the hyperstack dimensions and
+	 * the spatial calibration stored in the TIFF description.
+	 *
+	 * @return the image
+	 */
+	public ImagePlus getImagePlus() {
+		final ImagePlus imp = new ImagePlus(info.fileName, this);
+		final Properties props = descriptionProperties();
+		final int c = intProperty(props, "channels");
+		final int z = intProperty(props, "slices");
+		final int t = intProperty(props, "frames");
+		final int n = getSize();
+		if (c * z * t == n) {
+			imp.setDimensions(c, z, t);
+		} else {
+			imp.setDimensions(1, n, 1);
+		}
+		imp.setCalibration(getCalibration());
+		return imp;
+	}
+
+	/**
+	 * Retrieves the spatial calibration stored in the TIFF file, without
+	 * reading any pixel data.
+	 *
+	 * @return the calibration
+	 */
+	public Calibration getCalibration() {
+		final Properties props = descriptionProperties();
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = info.pixelWidth;
+		cal.pixelHeight = info.pixelHeight;
+		cal.pixelDepth = doubleProperty(props, "spacing", info.pixelDepth);
+		if (info.unit != null)
+			cal.setUnit(props.getProperty("unit", info.unit));
+		return cal;
+	}
+
+	private Properties descriptionProperties() {
+		final Properties props = new Properties();
+		if (info.description != null && info.description.startsWith("ImageJ")) {
+			try {
+				props.load(new StringReader(info.description));
+			} catch (final IOException ignored) {
+				// description is not a list of properties
+			}
+		}
+		return props;
+	}
+
+	private static int intProperty(final Properties props, final String key) {
+		try {
+			return Math.max(1, Integer.parseInt(props.getProperty(key, "1").trim()));
+		} catch (final NumberFormatException exc) {
+			return 1;
+		}
+	}
+
+	private static double doubleProperty(final Properties props, final String key, final double defaultValue) {
+		try {
+			return Double.parseDouble(props.getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (final NumberFormatException exc) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Maps the specified plane. The mapping shares the pages of the file and
+	 * is released once the buffer is garbage collected.
+	 *
+	 * @param n the (1-based) stack index
+	 * @return the read-only buffer of the plane, in the byte order of the file
+	 */
+	public ByteBuffer getPlaneBuffer(final int n) {
+		checkIndex(n);
+		if (planeBytes > Integer.MAX_VALUE)
+			throw new IllegalStateException("Planes larger than 2GB can only be read as tiles");
+		return map(n, offsets[n - 1], planeBytes);
+	}
+
+	private void checkIndex(final int n) {
+		if (n < 1 || n > offsets.length)
+			throw new IllegalArgumentException("Stack index out of range: " + n);
+	}
+
+	private ByteBuffer map(final int n, final long position, final long size) {
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(order);
+		} catch (final IOException exc) {
+			throw new IllegalStateException("Plane " + n + " could not be mapped", exc);
+		}
+	}
+
+	/**
+	 * Retrieves a view of the specified plane as a grid of tiles, e.g., to
+	 * parse large mosaics with {@link TiledImageParser2D}. Each tile is copied
+	 * from the file only when requested.
+	 *
+	 * @param n          the (1-based) stack index
+	 * @param tileWidth  the width of tiles
+	 * @param tileHeight the height of tiles
+	 * @return the tiled view of the plane
+	 */
+	public TileSource getTileSource(final int n, final int tileWidth, final int tileHeight) {
+		checkIndex(n);
+		if (tileWidth < 1 || tileHeight < 1)
+			throw new IllegalArgumentException("Tile dimensions must be > 0");
+		return new TileSource() {
+
+			@Override
+			public int getWidth() {
+				return width;
+			}
+
+			@Override
+			public int getHeight() {
+				return height;
+			}
+
+			@Override
+			public int getTileWidth() {
+				return tileWidth;
+			}
+
+			@Override
+			public int getTileHeight() {
+				return tileHeight;
+			}
+
+			@Override
+			public Object getTile(final int tileX, final int tileY) {
+				final int x0 = tileX * tileWidth;
+				final int y0 = tileY * tileHeight;
+				if (tileX < 0 || tileY < 0 || x0 >= width || y0 >= height)
+					throw new IllegalArgumentException("Tile out of range: " + tileX + ", " + tileY);
+				return getRegion(n, x0, y0, Math.min(tileWidth, width - x0), Math.min(tileHeight, height - y0));
+			}
+		};
+	}
+
+	/* Copies a rectangular region of a plane into a pixel array */
+	private Object getRegion(final int n, final int x0, final int y0, final int w, final int h) {
+		final int bytesPerPixel = bitDepth / 8;
+		final long rowBytes = (long) width * bytesPerPixel;
+		// Only the rows spanned by the region are mapped
+		final long size = (h - 1) * rowBytes + (long) w * bytesPerPixel;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Region is too large to be mapped");
+		final ByteBuffer buffer = map(n, offsets[n - 1] + y0 * rowBytes + (long) x0 * bytesPerPixel, size);
+		final Object pixels;
+		switch (bitDepth) {
+		case 8:
+			pixels = new byte[w * h];
+			break;
+		case 16:
+			pixels = new short[w * h];
+			break;
+		default:
+			pixels = new float[w * h];
+			break;
+		}
+		for (int y = 0; y < h; y++) {
+			buffer.position((int) (y * rowBytes));
+			switch (bitDepth) {
+			case 8:
+				buffer.get((byte[]) pixels, y * w, w);
+				break;
+			case 16:
+				buffer.asShortBuffer().get((short[]) pixels, y * w, w);
+				break;
+			default:
+				buffer.asFloatBuffer().get((float[]) pixels, y * w, w);
+				break;
+			}
+		}
+		return pixels;
+	}
+
+	/* Reads the specified plane directly from the mapped pages */
+	PixelReader getPixelReader(final int n, final double lowerT, final double upperT) {
+		return PixelReader.create(getPlaneBuffer(n), bitDepth, width, lowerT, upperT);
+	}
+
+	/** Copies the specified plane into a pixel array */
+	@Override
+	public Object getPixels(final int n) {
+		final ByteBuffer buffer = getPlaneBuffer(n);
+		switch (bitDepth) {
+		case 8:
+			final byte[] bytes = new byte[width * height];
+			buffer.get(bytes);
+			return bytes;
+		case 16:
+			final short[] shorts = new short[width * height];
+			buffer.asShortBuffer().get(shorts);
+			return shorts;
+		default:
+			final float[] floats = new float[width * height];
+			buffer.asFloatBuffer().get(floats);
+			return floats;
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		final Object pixels = getPixels(n);
+		switch (bitDepth) {
+		case 8:
+			return new ByteProcessor(width, height, (byte[]) pixels);
+		case 16:
+			return new ShortProcessor(width, height, (short[]) pixels, null);
+		default:
+			return new FloatProcessor(width, height, (float[]) pixels);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return offsets.length;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return null;
+	}
+
+	/** @return the mapped file */
+	File getFile() {
+		return new File(info.directory, info.fileName);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import sholl.Profile;
+import sholl.ProfileProperties;
+
+/**
+ * Cancellation and time budget of the parsing operations of a parser. Used by
+ * parsers that do not extend {@link ImageParser}, which implements the same
+ * logic.
+ *
+ * @author Tiago Ferreira
+ */
+final class ParseControl {
+
+	private volatile boolean running = true;
+	private long timeBudget; // nanoseconds, 0: no limit
+	private long deadline;
+	private volatile boolean timedOut;
+
+	void setTimeBudget(final long budget, final TimeUnit unit) {
+		if (budget < 0)
+			throw new IllegalArgumentException("Time budget cannot be negative");
+		timeBudget = unit.toNanos(budget);
+	}
+
+	long getTimeBudget(final TimeUnit unit) {
+		return unit.convert(timeBudget, TimeUnit.NANOSECONDS);
+	}
+
+	/** Starts the clock of a parsing operation, clearing any earlier termination. */
+	void start() {
+		running = true;
+		timedOut = false;
+		deadline = System.nanoTime() + timeBudget;
+	}
+
+	void terminate() {
+		running = false;
+	}
+
+	/**
+	 * Checks whether parsing should proceed. Meant to be called frequently
+	 * (e.g., once per row of pixels).
+	 *
+	 * @return false if parsing was terminated or its time budget has been
+	 *         exhausted
+	 */
+	boolean proceed() {
+		if (timeBudget > 0 && !timedOut && System.nanoTime() - deadline > 0)
+			timedOut = true;
+		return running && !timedOut;
+	}
+
+	boolean timedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Flags the profile as incomplete if parsing was terminated or ran out of
+	 * time, as done by {@link ImageParser}.
+	 *
+	 * @param profile the parsed profile
+	 */
+	void recordStop(final Profile profile) {
+		if (running && !timedOut)
+			return;
+		final Properties properties = profile.getProperties();
+		properties.setProperty(ProfileProperties.KEY_INCOMPLETE, "true");
+		properties.setProperty(ProfileProperties.KEY_STOP_RADIUS,
+				(profile.size() == 0) ? ProfileProperties.UNSET : String.valueOf(profile.endRadius()));
+		properties.setProperty(ProfileProperties.KEY_STOP_REASON,
+				(timedOut) ? ProfileProperties.STOP_TIME_BUDGET : ProfileProperties.STOP_CANCELLED);
+	}
+
+}
@@ -21,6 +21,8 @@
  */
 package sholl.parsers;
 
+import java.util.concurrent.TimeUnit;
+
 import sholl.Profile;
 import sholl.ProfileProperties;
 
@@ -34,5 +36,57 @@ public interface Parser extends ProfileProperties {
 
 	public Profile getProfile();
 
+	/**
+	 * Sets whether only intersection counts should be retained. In this mode
+	 * the intersection points of each shell are not stored in the parsed
+	 * {@link Profile}, so that memory usage no longer depends on arbor
+	 * density.
+	 *
+	 * @param countsOnly if true, profile entries are created without points
+	 * @throws UnsupportedOperationException if this parser does not support
+	 *                                       this mode
+	 */
+	public default void setCountsOnly(final boolean countsOnly) {
+		throw new UnsupportedOperationException("Parser does not support counts-only mode");
+	}
+
+	/**
+	 * @return whether parsed profile entries are created without intersection
+	 *         points
+	 */
+	public default boolean isCountsOnly() {
+		return false;
+	}
+
+	/**
+	 * Registers a listener to be notified of each profile entry as soon as its
+	 * shell has been parsed.
+	 *
+	 * @param listener the listener to be notified during {@link #parse()}
+	 * @throws UnsupportedOperationException if this parser does not support
+	 *                                       listeners
+	 */
+	public default void addProfileEntryListener(final ProfileEntryListener listener) {
+		throw new UnsupportedOperationException("Parser does not support listeners");
+	}
+
+	public default void removeProfileEntryListener(final ProfileEntryListener listener) {
+		// nothing to remove by default
+	}
+
+	/**
+	 * Sets a time budget for {@link #parse()}. Once the budget is exhausted,
+	 * parsing stops cleanly and the shells parsed so far are retained in a
+	 * profile flagged as {@link Profile#isIncomplete() incomplete}.
+	 *
+	 * @param budget the maximum parsing time. Zero (the default) means no
+	 *               limit
+	 * @param unit   the time unit of budget
+	 * @throws UnsupportedOperationException if this parser does not support
+	 *                                       time budgets
+	 */
+	public default void setTimeBudget(final long budget, final TimeUnit unit) {
+		throw new UnsupportedOperationException("Parser does not support time budgets");
+	}
 
 }
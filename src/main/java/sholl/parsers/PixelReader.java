@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.nio.ByteBuffer;
+
+import ij.process.ColorProcessor;
+import ij.process.TypeConverter;
+
+/**
+ * Type-specialized, read-only access to the pixel array of a single image
+ * plane. Values are read directly from the underlying {@code byte[]},
+ * {@code short[]} or {@code float[]} array without conversion copies. RGB
+ * planes are converted once to 8-bit. Planes can also be read from
+ * (memory-mapped) byte buffers.
+ *
+ * @author Tiago Ferreira
+ */
+abstract class PixelReader {
+
+	protected final int width;
+	protected final double lowerT;
+	protected final double upperT;
+
+	private PixelReader(final int width, final double lowerT, final double upperT) {
+		this.width = width;
+		this.lowerT = lowerT;
+		this.upperT = upperT;
+	}
+
+	/**
+	 * Creates a reader for the specified plane.
+	 *
+	 * @param pixels the pixel array of the plane (byte[], short[], float[] or
+	 *               int[] (RGB))
+	 * @param width  the width of the plane
+	 * @param height the height of the plane
+	 * @param lowerT the lower threshold limit (inclusive)
+	 * @param upperT the upper threshold limit (inclusive)
+	 * @return the reader
+	 */
+	static PixelReader create(final Object pixels, final int width, final int height, final double lowerT,
+			final double upperT) {
+		if (pixels instanceof byte[])
+			return new ByteReader((byte[]) pixels, width, lowerT, upperT);
+		if (pixels instanceof short[])
+			return new ShortReader((short[]) pixels, width, lowerT, upperT);
+		if (pixels instanceof float[])
+			return new FloatReader((float[]) pixels, width, lowerT, upperT);
+		if (pixels instanceof int[]) {
+			final ColorProcessor cp = new ColorProcessor(width, height, (int[]) pixels);
+			final Object bytes = new TypeConverter(cp, false).convertToByte().getPixels();
+			return new ByteReader((byte[]) bytes, width, lowerT, upperT);
+		}
+		throw new IllegalArgumentException("Unsupported pixel array: " + pixels);
+	}
+
+	/**
+	 * Creates a reader for a plane stored in a byte buffer, e.g., a
+	 * memory-mapped plane of a file. Values are read in place.
+	 *
+	 * @param buffer   the plane buffer, in the byte order of its data
+	 * @param bitDepth the bit depth (8: unsigned byte, 16: unsigned short, 32:
+	 *                 float)
+	 * @param width    the width of the plane
+	 * @param lowerT   the lower threshold limit (inclusive)
+	 * @param upperT   the upper threshold limit (inclusive)
+	 * @return the reader
+	 */
+	static PixelReader create(final ByteBuffer buffer, final int bitDepth, final int width, final double lowerT,
+			final double upperT) {
+		switch (bitDepth) {
+		case 8:
+			return new ByteBufferReader(buffer, width, lowerT, upperT);
+		case 16:
+			return new ShortBufferReader(buffer, width, lowerT, upperT);
+		case 32:
+			return new FloatBufferReader(buffer, width, lowerT, upperT);
+		default:
+			throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+	}
+
+	/** @return the value at the specified (row-major) index */
+	abstract double getValue(int index);
+
+	/** @return whether the value at the specified index is within threshold */
+	abstract boolean withinThreshold(int index);
+
+	double getValue(final int x, final int y) {
+		return getValue(y * width + x);
+	}
+
+	boolean withinThreshold(final int x, final int y) {
+		return withinThreshold(y * width + x);
+	}
+
+	private static final class ByteReader extends PixelReader {
+
+		private final byte[] pixels;
+
+		ByteReader(final byte[] pixels, final int width, final double lowerT, final double upperT) {
+			super(width, lowerT, upperT);
+			this.pixels = pixels;
+		}
+
+		@Override
+		double getValue(final int index) {
+			return pixels[index] & 0xff;
+		}
+
+		@Override
+		boolean withinThreshold(final int index) {
+			final int value = pixels[index] & 0xff;
+			return value >= lowerT && value <= upperT;
+		}
+	}
+
+	private static final class ShortReader extends PixelReader {
+
+		private final short[] pixels;
+
+		ShortReader(final short[] pixels, final int width, final double lowerT, final double upperT) {
+			super(width, lowerT, upperT);
+			this.pixels = pixels;
+		}
+
+		@Override
+		double getValue(final int index) {
+			return pixels[index] & 0xffff;
+		}
+
+		@Override
+		boolean withinThreshold(final int index) {
+			final int value = pixels[index] & 0xffff;
+			return value >= lowerT && value <= upperT;
+		}
+	}
+
+	private static final class FloatReader extends PixelReader {
+
+		private final float[] pixels;
+
+		FloatReader(final float[] pixels, final int width, final double lowerT, final double upperT) {
+			super(width, lowerT, upperT);
+			this.pixels = pixels;
+		}
+
+		@Override
+		double getValue(final int index) {
+			return pixels[index];
+		}
+
+		@Override
+		boolean withinThreshold(final int index) {
+			final float value = pixels[index];
+			return value >= lowerT && value <= upperT;
+		}
+	}
+
+	private static final class ByteBufferReader extends PixelReader {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferReader(final ByteBuffer buffer, final int width, final double lowerT, final double upperT) {
+			super(width, lowerT, upperT);
+			this.buffer = buffer;
+		}
+
+		@Override
+		double getValue(final int index) {
+			return buffer.get(index) & 0xff;
+		}
+
+		@Override
+		boolean withinThreshold(final int index) {
+			final int value = buffer.get(index) & 0xff;
+			return value >= lowerT && value <= upperT;
+		}
+	}
+
+	private static final class ShortBufferReader extends PixelReader {
+
+		private final ByteBuffer buffer;
+
+		ShortBufferReader(final ByteBuffer buffer, final int width, final double lowerT, final double upperT) {
+			super(width, lowerT, upperT);
+			this.buffer = buffer;
+		}
+
+		@Override
+		double getValue(final int index) {
+			return buffer.getShort(index << 1) & 0xffff;
+		}
+
+		@Override
+		boolean withinThreshold(final int index) {
+			final int value = buffer.getShort(index << 1) & 0xffff;
+			return value >= lowerT && value <= upperT;
+		}
+	}
+
+	private static final class FloatBufferReader extends PixelReader {
+
+		private final ByteBuffer buffer;
+
+		FloatBufferReader(final ByteBuffer buffer, final int width, final double lowerT, final double upperT) {
+			super(width, lowerT, upperT);
+			this.buffer = buffer;
+		}
+
+		@Override
+		double getValue(final int index) {
+			return buffer.getFloat(index << 2);
+		}
+
+		@Override
+		boolean withinThreshold(final int index) {
+			final float value = buffer.getFloat(index << 2);
+			return value >= lowerT && value <= upperT;
+		}
+	}
+
+}
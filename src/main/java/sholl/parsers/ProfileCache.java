@@ -0,0 +1,258 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import sholl.PointCloud;
+import sholl.Profile;
+import sholl.ProfileEntry;
+import sholl.UPoint;
+
+/**
+ * Persistent cache of parsed profiles, stored as compact (compressed, single
+ * precision) files in a local directory. Profiles are keyed by a digest of
+ * the analyzed data and of all the parameters affecting parsing, so that
+ * parsers can skip parsing of unchanged data across sessions. When the
+ * directory exceeds its size limit, the least recently used profiles are
+ * evicted.
+ * <p>
+ * The cache can be shared by several parsers. Files are written atomically,
+ * so that concurrent processes never read partial profiles.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class ProfileCache {
+
+	private static final int MAGIC = 0x53484F4C; // "SHOL"
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".sholl";
+
+	private final File directory;
+	private final long maxBytes;
+
+	/**
+	 * Instantiates a new cache.
+	 *
+	 * @param directory the cache directory. It is created if it does not exist
+	 * @param maxBytes  the maximum size of the cache (in bytes)
+	 * @throws IllegalArgumentException if directory is not a writable
+	 *                                  directory or maxBytes is not positive
+	 */
+	public ProfileCache(final File directory, final long maxBytes) {
+		if (directory == null || (!directory.isDirectory() && !directory.mkdirs()) || !directory.canWrite())
+			throw new IllegalArgumentException("Not a writable directory: " + directory);
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Cache size must be > 0");
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Computes a cache key.
+	 *
+	 * @param parameters the parameters affecting parsing, including a hash of
+	 *                   the parsed data
+	 * @return the key, as a hexadecimal string
+	 */
+	public static String key(final Object... parameters) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (final Object parameter : parameters) {
+				final String string = (parameter instanceof double[]) ? Arrays.toString((double[]) parameter)
+						: String.valueOf(parameter);
+				digest.update(string.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			final StringBuilder sb = new StringBuilder();
+			for (final byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (final NoSuchAlgorithmException exc) {
+			throw new IllegalStateException(exc); // SHA-1 is always available
+		}
+	}
+
+	/**
+	 * Retrieves a cached profile.
+	 *
+	 * @param key the profile key
+	 * @return the cached profile (holding only entries and the properties
+	 *         stored with it), or null if the key is not cached or its file
+	 *         could not be read
+	 */
+	public Profile get(final String key) {
+		final File file = file(key);
+		if (!file.exists())
+			return null;
+		final Profile profile = new Profile();
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			final Properties properties = profile.getProperties();
+			final int nProperties = in.readInt();
+			for (int i = 0; i < nProperties; i++)
+				properties.setProperty(in.readUTF(), in.readUTF());
+			final int nEntries = in.readInt();
+			for (int i = 0; i < nEntries; i++) {
+				final double radius = in.readDouble();
+				final double count = in.readDouble();
+				final int nPoints = in.readInt();
+				PointCloud points = null;
+				if (nPoints >= 0) {
+					points = new PointCloud(nPoints);
+					for (int j = 0; j < nPoints; j++)
+						points.add(in.readFloat(), in.readFloat(), in.readFloat());
+				}
+				profile.add(new ProfileEntry(radius, count, points));
+			}
+		} catch (final IOException exc) {
+			return null; // corrupted or deleted by another process
+		}
+		file.setLastModified(System.currentTimeMillis()); // mark as recently used
+		return profile;
+	}
+
+	/**
+	 * Stores a profile, evicting least recently used profiles if needed.
+	 *
+	 * @param key        the profile key
+	 * @param profile    the profile to be stored
+	 * @param properties the properties to be stored with the profile
+	 *                   (typically those describing the parsing outcome). May
+	 *                   be null.
+	 * @throws IOException if the profile could not be written
+	 */
+	public synchronized void put(final String key, final Profile profile, final Map<String, String> properties)
+			throws IOException {
+		final File tmp = File.createTempFile(key, ".tmp", directory);
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt((properties == null) ? 0 : properties.size());
+				if (properties != null) {
+					for (final Map.Entry<String, String> property : properties.entrySet()) {
+						out.writeUTF(property.getKey());
+						out.writeUTF(property.getValue());
+					}
+				}
+				final SortedSet<ProfileEntry> entries = profile.entries();
+				out.writeInt(entries.size());
+				for (final ProfileEntry entry : entries) {
+					out.writeDouble(entry.radius);
+					out.writeDouble(entry.count);
+					writePoints(out, entry.points);
+				}
+			}
+			try {
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException exc) {
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+		evict();
+	}
+
+	/** Deletes all cached profiles. */
+	public synchronized void clear() {
+		for (final File file : cachedFiles())
+			file.delete();
+	}
+
+	/** @return the current size of the cache (in bytes) */
+	public long size() {
+		long size = 0;
+		for (final File file : cachedFiles())
+			size += file.length();
+		return size;
+	}
+
+	private static void writePoints(final DataOutputStream out, final Set<UPoint> points) throws IOException {
+		if (points == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final PointCloud cloud = (points instanceof PointCloud) ? (PointCloud) points : new PointCloud(points);
+		out.writeInt(cloud.size());
+		for (int i = 0; i < cloud.size(); i++) {
+			out.writeFloat((float) cloud.x(i));
+			out.writeFloat((float) cloud.y(i));
+			out.writeFloat((float) cloud.z(i));
+		}
+	}
+
+	/* Deletes least recently used files until the cache fits its size limit */
+	private void evict() {
+		final File[] files = cachedFiles();
+		long size = 0;
+		for (final File file : files)
+			size += file.length();
+		if (size <= maxBytes)
+			return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (final File file : files) {
+			if (size <= maxBytes)
+				break;
+			final long length = file.length();
+			if (file.delete())
+				size -= length;
+		}
+	}
+
+	private File[] cachedFiles() {
+		final File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		return (files == null) ? new File[0] : files;
+	}
+
+	private File file(final String key) {
+		return new File(directory, key + EXTENSION);
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import sholl.ProfileEntry;
+
+/**
+ * Listener notified by a {@link Parser} as soon as the {@link ProfileEntry} of
+ * a shell has been parsed, i.e., before parsing of the whole profile
+ * completes.
+ * <p>
+ * Parsers may sample shells concurrently and in any order: Entries are not
+ * necessarily delivered in ascending order of radii, and notifications may be
+ * issued from worker threads. Implementations should therefore be
+ * thread-safe and return quickly.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+@FunctionalInterface
+public interface ProfileEntryListener {
+
+	/**
+	 * Called when a shell has been parsed.
+	 *
+	 * @param entry the parsed entry. It should not be modified.
+	 */
+	public void entryParsed(ProfileEntry entry);
+
+}
@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Arrays;
+
+/**
+ * Groups 8-connected circumference points in linear time. Points are expected
+ * in ring order, i.e., walking around the circle (possibly with gaps). In such
+ * a sequence, 8-connected points are never more than two positions apart, so
+ * each point only needs to be compared with the next two (in circular order).
+ * Runs wrapping around the first point are grouped as a single run.
+ *
+ * @author Tiago Ferreira
+ */
+final class RingGroups {
+
+	/* Tests whether a pixel is foreground. Pixels out of bounds are not */
+	@FunctionalInterface
+	interface PixelTest {
+		boolean foreground(int x, int y);
+	}
+
+	private RingGroups() {
+	}
+
+	/**
+	 * Returns the indices of the first point of each group of 8-connected
+	 * circumference points, in ascending order.
+	 *
+	 * @param points         the ordered (foreground) circumference points
+	 * @param suppressSpikes if true, single-point 'stair' spikes are excluded
+	 * @param test           the foreground test used to detect stair spikes
+	 * @return the indices of group representatives
+	 */
+	static int[] representatives(final int[][] points, final boolean suppressSpikes, final PixelTest test) {
+
+		final int len = points.length;
+		final int[] parent = new int[len];
+		for (int i = 0; i < len; i++)
+			parent[i] = i;
+
+		for (int i = 0; i < len; i++) {
+			for (int step = 1; step <= 2 && step < len; step++) {
+				final int j = (i + step) % len;
+				if (Math.abs(points[i][0] - points[j][0]) <= 1 && Math.abs(points[i][1] - points[j][1]) <= 1)
+					union(parent, i, j);
+			}
+		}
+
+		// Roots are the lowest index of each group
+		final int[] groupSize = new int[len];
+		for (int i = 0; i < len; i++)
+			groupSize[find(parent, i)]++;
+
+		final int[] representatives = new int[len];
+		int count = 0;
+		for (int i = 0; i < len; i++) {
+			if (parent[i] != i)
+				continue;
+			if (suppressSpikes && groupSize[i] == 1 && isStairSpike(points[i][0], points[i][1], test))
+				continue;
+			representatives[count++] = i;
+		}
+		return Arrays.copyOf(representatives, count);
+	}
+
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(final int[] parent, final int i, final int j) {
+		final int ri = find(parent, i);
+		final int rj = find(parent, j);
+		if (ri < rj)
+			parent[rj] = ri;
+		else if (rj < ri)
+			parent[ri] = rj;
+	}
+
+	/* Stair checks: Is the isolated point at x,y the corner of a thick diagonal? */
+	static boolean isStairSpike(final int x, final int y, final PixelTest test) {
+		final boolean p0 = test.foreground(x - 1, y + 1);
+		final boolean p1 = test.foreground(x, y + 1);
+		final boolean p2 = test.foreground(x + 1, y + 1);
+		final boolean p3 = test.foreground(x - 1, y);
+		final boolean p4 = test.foreground(x + 1, y);
+		final boolean p5 = test.foreground(x - 1, y - 1);
+		final boolean p6 = test.foreground(x, y - 1);
+		final boolean p7 = test.foreground(x + 1, y - 1);
+		return (p0 && p1 && p3 && !p4 && !p6 && !p7) || (p1 && p2 && p4 && !p3 && !p5 && !p6)
+				|| (p4 && p6 && p7 && !p0 && !p1 && !p3) || (p3 && p5 && p6 && !p1 && !p2 && !p4);
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Arrays;
+
+/**
+ * The shell bands of a single-pass scan, sorted by radius: A voxel
+ * intercepts a shell of radius r if its distance to the center is within
+ * (r - voxelSize, r + voxelSize), and if it lies within the smallest
+ * (pixel-aligned) box enclosing the shell. Raw coordinates can be relative to
+ * any origin, as long as voxels and center share it.
+ *
+ * @author Tiago Ferreira
+ */
+final class ShellBands {
+
+	/* Tests whether a voxel should be kept, e.g., if it is not isolated */
+	@FunctionalInterface
+	interface VoxelFilter {
+		boolean accept(int x, int y, int z);
+	}
+
+	private final double[] shellRadii;
+	private final double voxelSize;
+	private final double[] lowerSq;
+	private final double[] upperSq;
+	private final int[] xr, yr, zr;
+	private final int xc, yc, zc;
+	private final VoxelFilter filter;
+	// Candidate shells are bisected with some tolerance: Exact boundaries
+	// are evaluated on squared distances
+	private final double tolerance;
+
+	/**
+	 * @param shellRadii the sorted radii of the shells
+	 * @param voxelSize  the (isotropic) voxel size setting band thickness
+	 * @param vxW        the voxel width
+	 * @param vxH        the voxel height
+	 * @param vxD        the voxel depth
+	 * @param xc         the raw x-coordinate of the center
+	 * @param yc         the raw y-coordinate of the center
+	 * @param zc         the raw z-coordinate of the center
+	 * @param filter     the test applied to voxels intercepting a shell
+	 *                   before they are binned, or null
+	 */
+	ShellBands(final double[] shellRadii, final double voxelSize, final double vxW, final double vxH,
+			final double vxD, final int xc, final int yc, final int zc, final VoxelFilter filter) {
+		this.shellRadii = shellRadii;
+		this.voxelSize = voxelSize;
+		this.xc = xc;
+		this.yc = yc;
+		this.zc = zc;
+		this.filter = filter;
+		tolerance = 1e-6 * voxelSize;
+		final int nShells = shellRadii.length;
+		lowerSq = new double[nShells];
+		upperSq = new double[nShells];
+		xr = new int[nShells];
+		yr = new int[nShells];
+		zr = new int[nShells];
+		for (int i = 0; i < nShells; i++) {
+			final double r = shellRadii[i];
+			lowerSq[i] = (r - voxelSize) * (r - voxelSize);
+			upperSq[i] = (r + voxelSize) * (r + voxelSize);
+			// each shell remains restricted to the smallest volume enclosing it
+			xr[i] = (int) Math.round(r / vxW);
+			yr[i] = (int) Math.round(r / vxH);
+			zr[i] = (int) Math.round(r / vxD);
+		}
+	}
+
+	int size() {
+		return shellRadii.length;
+	}
+
+	double radius(final int index) {
+		return shellRadii[index];
+	}
+
+	/* The squared outer radius of the outermost band */
+	double outerLimit() {
+		return (shellRadii.length == 0) ? 0 : upperSq[shellRadii.length - 1];
+	}
+
+	/* Adds a foreground voxel to the bins of the shell(s) it intercepts */
+	void bin(final int x, final int y, final int z, final double dSq, final VoxelList[] bins) {
+		final int nShells = shellRadii.length;
+		final double d = Math.sqrt(dSq);
+		boolean filtered = false;
+		for (int i = firstIndexAbove(shellRadii, d - voxelSize - tolerance); i < nShells
+				&& shellRadii[i] < d + voxelSize + tolerance; i++) {
+			if (dSq <= lowerSq[i] || dSq >= upperSq[i])
+				continue;
+			if (Math.abs(x - xc) > xr[i] || Math.abs(y - yc) > yr[i] || Math.abs(z - zc) > zr[i])
+				continue;
+			if (!filtered) {
+				if (filter != null && !filter.accept(x, y, z))
+					break;
+				filtered = true;
+			}
+			if (bins[i] == null)
+				bins[i] = new VoxelList();
+			bins[i].add(x, y, z);
+		}
+	}
+
+	/* Returns the index of the first element in sorted array greater than value */
+	static int firstIndexAbove(final double[] sortedArray, final double value) {
+		int idx = Arrays.binarySearch(sortedArray, value);
+		if (idx < 0)
+			return -(idx + 1);
+		while (idx < sortedArray.length && sortedArray[idx] <= value)
+			idx++;
+		return idx;
+	}
+
+}
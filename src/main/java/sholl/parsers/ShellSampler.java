@@ -0,0 +1,206 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import ij.measure.Calibration;
+import sholl.PointCloud;
+import sholl.Profile;
+import sholl.ProfileEntry;
+
+/**
+ * Single-pass sampling of a thresholded volume, shared by
+ * {@link ImageParser3D} and {@link ImgParser}: The foreground is scanned once,
+ * each voxel being binned by the shell(s) whose surface it intercepts
+ * ({@link #scan}), and the voxels of each shell are then grouped into
+ * 26-connected clusters, each cluster counting as one intersection
+ * ({@link #cluster}).
+ *
+ * @author Tiago Ferreira
+ */
+final class ShellSampler {
+
+	/* Reports the progress of a pass */
+	interface Progress {
+		void update(int done, int total, int nThreads);
+	}
+
+	private final WorkerPool workers;
+	private final BooleanSupplier proceed;
+	private final Calibration cal;
+	private final boolean countsOnly;
+	private final Consumer<ProfileEntry> listener;
+
+	/**
+	 * @param workers    the pool running both passes
+	 * @param proceed    checked before each row (or shell). If it evaluates to
+	 *                   false sampling is aborted
+	 * @param cal        converts voxel coordinates into the calibrated
+	 *                   coordinates of intersection points
+	 * @param countsOnly whether intersection points should be discarded
+	 * @param listener   notified of each parsed entry
+	 */
+	ShellSampler(final WorkerPool workers, final BooleanSupplier proceed, final Calibration cal,
+			final boolean countsOnly, final Consumer<ProfileEntry> listener) {
+		this.workers = workers;
+		this.proceed = proceed;
+		this.cal = cal;
+		this.countsOnly = countsOnly;
+		this.listener = listener;
+	}
+
+	/**
+	 * Pass 1: Workers pull slices from a shared queue, binning the foreground
+	 * voxels within box by shell.
+	 *
+	 * @param mask      the thresholded volume
+	 * @param box       the scanned bounds, as {minX, maxX, minY, maxY, minZ,
+	 *                  maxZ}
+	 * @param distances the squared distances to the center
+	 * @param bands     the shells
+	 * @param progress  notified of each scanned slice. May be null
+	 * @return the voxels of each shell, indexed by slice (relative to box)
+	 *         and shell. Bins of slices not scanned when aborted are null
+	 */
+	VoxelList[][] scan(final ForegroundMask mask, final int[] box, final DistanceMap distances,
+			final ShellBands bands, final Progress progress) {
+		final int minX = box[0], minY = box[2], maxY = box[3], minZ = box[4], maxZ = box[5];
+		final int nSlices = maxZ - minZ + 1;
+		final VoxelList[][] sliceBins = new VoxelList[nSlices][];
+		final AtomicInteger nextSlice = new AtomicInteger(minZ);
+		final AtomicInteger scannedSlices = new AtomicInteger(0);
+		final int nThreads = workers.threads(nSlices);
+		workers.run(nThreads, worker -> {
+			for (int z = nextSlice.getAndIncrement(); z <= maxZ; z = nextSlice.getAndIncrement()) {
+				final VoxelList[] bins = new VoxelList[bands.size()];
+				sliceBins[z - minZ] = bins;
+				if (progress != null)
+					progress.update(scannedSlices.incrementAndGet(), nSlices, nThreads);
+				final double dzSq = distances.zSq(z);
+				for (int y = minY; y <= maxY; y++) {
+					if (!proceed.getAsBoolean())
+						return;
+					final double dySq = distances.ySq(y);
+					// Visit only foreground voxels
+					for (int x = mask.nextForeground(minX, y, z); x >= 0 && x <= box[1]; x = mask
+							.nextForeground(x + 1, y, z))
+						bands.bin(x, y, z, distances.xSq(x) + dySq + dzSq, bins);
+				}
+			}
+		});
+		return sliceBins;
+	}
+
+	/**
+	 * @return the number of voxels binned to each of the first nShells shells
+	 */
+	static double[] costs(final VoxelList[][] bins, final int nShells) {
+		final double[] costs = new double[nShells];
+		for (final VoxelList[] slice : bins) {
+			if (slice == null)
+				continue;
+			for (int i = 0; i < nShells; i++)
+				if (slice[i] != null)
+					costs[i] += slice[i].size();
+		}
+		return costs;
+	}
+
+	/**
+	 * Pass 2: Workers pull shells from a shared queue, clustering the voxels of
+	 * each shell. Bins are merged in Z-order, so that points are retrieved in
+	 * (z,y,x) order, and are released as soon as their shell has been
+	 * clustered.
+	 *
+	 * @param bins       the bins retrieved by {@link #scan}
+	 * @param shellRadii the radius of each shell
+	 * @param costs      the size of each shell to be clustered, as retrieved
+	 *                   by {@link #costs}. Only the first costs.length
+	 *                   shells are clustered
+	 * @param sort       whether the voxels of a shell need to be sorted in
+	 *                   (z,y,x) order, i.e., if bins are not sorted by slice
+	 * @param insideOut  whether shells are clustered from the inside out, so
+	 *                   that aborted profiles are populated from the first
+	 *                   shell. Otherwise, the most populated shells are
+	 *                   clustered first
+	 * @param profile    the profile receiving the parsed entries
+	 * @param progress   notified of each clustered shell. May be null
+	 */
+	void cluster(final VoxelList[][] bins, final double[] shellRadii, final double[] costs, final boolean sort,
+			final boolean insideOut, final Profile profile, final Progress progress) {
+		final int nShells = costs.length;
+		final int[] queue = (insideOut) ? IntStream.range(0, nShells).toArray()
+				: ImageParser.orderByDescendingCost(costs);
+		final AtomicInteger nextShell = new AtomicInteger(0);
+		final AtomicInteger clusteredShells = new AtomicInteger(0);
+		final int nThreads = workers.threads(nShells);
+		final Profile[] fragments = new Profile[nThreads];
+		workers.run(nThreads, worker -> {
+			final Profile fragment = fragments[worker] = new Profile();
+			for (int q = nextShell.getAndIncrement(); q < nShells; q = nextShell.getAndIncrement()) {
+				if (!proceed.getAsBoolean())
+					return;
+				final int i = queue[q];
+				if (progress != null)
+					progress.update(clusteredShells.incrementAndGet(), nShells, nThreads);
+				final VoxelList shellVoxels = new VoxelList((int) costs[i]);
+				for (final VoxelList[] slice : bins) {
+					if (slice == null)
+						continue;
+					shellVoxels.addAll(slice[i]);
+					slice[i] = null; // release memory as soon as possible
+				}
+				if (sort)
+					shellVoxels.sort();
+				final ProfileEntry entry = entry(shellRadii[i], shellVoxels);
+				fragment.add(entry);
+				listener.accept(entry);
+			}
+		});
+		for (final Profile fragment : fragments) {
+			if (fragment != null)
+				profile.merge(fragment);
+		}
+	}
+
+	/**
+	 * Clusters the voxels intercepting a shell.
+	 *
+	 * @param radius      the shell radius
+	 * @param shellVoxels the voxels intercepting the shell, in (z,y,x) order
+	 * @return the profile entry of the shell
+	 */
+	ProfileEntry entry(final double radius, final VoxelList shellVoxels) {
+		final int[] roots = VoxelClusterer.representatives(shellVoxels);
+		if (countsOnly)
+			return new ProfileEntry(radius, roots.length);
+		final PointCloud points = new PointCloud(roots.length);
+		for (final int v : roots)
+			points.add(cal.getX(shellVoxels.x(v)), cal.getY(shellVoxels.y(v)), cal.getZ(shellVoxels.z(v)));
+		return new ProfileEntry(radius, points);
+	}
+
+}
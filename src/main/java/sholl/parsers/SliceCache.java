@@ -0,0 +1,186 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ij.ImageStack;
+
+/**
+ * Least-recently-used cache of the decoded planes of a (virtual) stack,
+ * bounded by a memory budget. Planes can be prefetched by a background
+ * thread, so that the slices ahead of the ones being parsed are read from
+ * disk (and decoded) while parsing proceeds. A plane is decoded only once,
+ * even if requested concurrently by a parser and by the prefetcher.
+ *
+ * @author Tiago Ferreira
+ */
+public final class SliceCache {
+
+	private final ImageStack stack;
+	private final long maxBytes;
+	private final LinkedHashMap<Integer, Object> planes = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<Integer, FutureTask<Object>> pending = new HashMap<>();
+	private final ThreadPoolExecutor prefetcher;
+	private long bytes;
+
+	/**
+	 * @param stack    the stack whose planes are cached
+	 * @param maxBytes the memory budget of the cache. If 0, planes are still
+	 *                 decoded only once per request, but are not retained
+	 */
+	public SliceCache(final ImageStack stack, final long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Memory budget cannot be negative");
+		this.stack = stack;
+		this.maxBytes = maxBytes;
+		// A single (daemon) thread that terminates when idle
+		prefetcher = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			final Thread thread = new Thread(r, "Sholl slice prefetcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Retrieves the pixel array of the specified plane, decoding it if it is
+	 * not cached. The returned array is shared and must not be modified.
+	 *
+	 * @param n the (1-based) stack index
+	 * @return the pixel array
+	 */
+	public Object getPixels(final int n) {
+		final FutureTask<Object> task;
+		boolean owner = false;
+		synchronized (this) {
+			final Object pixels = planes.get(n);
+			if (pixels != null)
+				return pixels;
+			FutureTask<Object> existing = pending.get(n);
+			if (existing == null) {
+				existing = newTask(n);
+				pending.put(n, existing);
+				owner = true;
+			}
+			task = existing;
+		}
+		if (owner)
+			task.run();
+		try {
+			return task.get();
+		} catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			return stack.getPixels(n);
+		} catch (final ExecutionException exc) {
+			final Throwable cause = exc.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Schedules the specified plane to be decoded in the background. Does
+	 * nothing if the plane is cached, being decoded, or out of range.
+	 *
+	 * @param n the (1-based) stack index
+	 */
+	public void prefetch(final int n) {
+		if (n < 1 || n > stack.getSize() || maxBytes == 0)
+			return;
+		synchronized (this) {
+			if (planes.containsKey(n) || pending.containsKey(n))
+				return;
+			final FutureTask<Object> task = newTask(n);
+			pending.put(n, task);
+			prefetcher.execute(task);
+		}
+	}
+
+	private FutureTask<Object> newTask(final int n) {
+		return new FutureTask<>(() -> {
+			Object pixels = null;
+			try {
+				pixels = stack.getPixels(n);
+				return pixels;
+			} finally {
+				store(n, pixels);
+			}
+		});
+	}
+
+	/* Retains a decoded plane, evicting the least recently used ones */
+	private synchronized void store(final int n, final Object pixels) {
+		pending.remove(n);
+		if (pixels == null)
+			return;
+		final long size = sizeOf(pixels);
+		if (size > maxBytes)
+			return;
+		if (planes.put(n, pixels) == null)
+			bytes += size;
+		final Iterator<Object> it = planes.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= sizeOf(it.next());
+			it.remove();
+		}
+	}
+
+	private static long sizeOf(final Object pixels) {
+		if (pixels instanceof byte[])
+			return ((byte[]) pixels).length;
+		if (pixels instanceof short[])
+			return 2L * ((short[]) pixels).length;
+		if (pixels instanceof float[])
+			return 4L * ((float[]) pixels).length;
+		if (pixels instanceof int[])
+			return 4L * ((int[]) pixels).length;
+		return 0;
+	}
+
+	/** @return the stack whose planes are cached */
+	public ImageStack getStack() {
+		return stack;
+	}
+
+	/** @return the number of bytes used by cached planes */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Discards all cached planes. */
+	public synchronized void clear() {
+		planes.clear();
+		bytes = 0;
+	}
+
+}
@@ -23,7 +23,10 @@ package sholl.parsers;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import org.scijava.table.DoubleColumn;
 import org.scijava.table.DoubleTable;
@@ -49,7 +52,8 @@ public class TabularParser implements Parser {
 	private int endRow = -1;
 	private String tableName;
 	private final String radiiColumnHeader;
-	private volatile boolean running = true;
+	private final ParseControl control = new ParseControl();
+	private final List<ProfileEntryListener> listeners = new CopyOnWriteArrayList<>();
 
 	public TabularParser(final File table, final String radiiColumnHeader, final String countsColumnHeader)
 			throws IOException {
@@ -101,6 +105,7 @@ public class TabularParser implements Parser {
 	@Override
 	public void parse() {
 		profile = new Profile();
+		control.start();
 		if (ij1table == null)
 			buildProfileFromIJ2Table();
 		else
@@ -113,7 +118,7 @@ public class TabularParser implements Parser {
 		final Calibration cal = guessCalibrationFromHeading(radiiColumnHeader);
 		if (cal != null)
 			profile.setSpatialCalibration(cal);
-
+		control.recordStop(profile);
 	}
 
 	private int[] getFilteredRowRange(final int lastRow) {
@@ -132,7 +137,8 @@ public class TabularParser implements Parser {
 		for (int i = rowRange[0]; i <= rowRange[1]; i++) {
 			final ProfileEntry entry = new ProfileEntry(radii[i], counts[i], null);
 			profile.add(entry);
-			if (!running)
+			fireEntryParsed(entry);
+			if (!control.proceed())
 				break;
 		}
 	}
@@ -146,7 +152,8 @@ public class TabularParser implements Parser {
 		for (int i = rowRange[0]; i <= rowRange[1]; i++) {
 			final ProfileEntry entry = new ProfileEntry(radiiColumn.get(i), countsColumn.get(i), null);
 			profile.add(entry);
-			if (!running)
+			fireEntryParsed(entry);
+			if (!control.proceed())
 				break;
 		}
 	}
@@ -182,7 +189,25 @@ public class TabularParser implements Parser {
 
 	@Override
 	public void terminate() {
-		running = false;
+		control.terminate();
+	}
+
+	/**
+	 * Sets a time budget for {@link #parse()}. Once the budget is exhausted,
+	 * parsing stops and the rows parsed so far are retained in a profile
+	 * flagged as {@link Profile#isIncomplete() incomplete}.
+	 *
+	 * @param budget the maximum parsing time. Zero (the default) means no
+	 *               limit
+	 * @param unit   the time unit of budget
+	 */
+	@Override
+	public void setTimeBudget(final long budget, final TimeUnit unit) {
+		control.setTimeBudget(budget, unit);
+	}
+
+	public long getTimeBudget(final TimeUnit unit) {
+		return control.getTimeBudget(unit);
 	}
 
 	@Override
@@ -190,6 +215,39 @@ public class TabularParser implements Parser {
 		return profile;
 	}
 
+	/**
+	 * Tables hold no intersection points: Profile entries are always created
+	 * without points, irrespective of this setting.
+	 *
+	 * @param countsOnly ignored
+	 */
+	@Override
+	public void setCountsOnly(final boolean countsOnly) {
+		// entries never have points
+	}
+
+	@Override
+	public boolean isCountsOnly() {
+		return true;
+	}
+
+	@Override
+	public void addProfileEntryListener(final ProfileEntryListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeProfileEntryListener(final ProfileEntryListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireEntryParsed(final ProfileEntry entry) {
+		for (final ProfileEntryListener listener : listeners)
+			listener.entryParsed(entry);
+	}
+
 	public static void main(final String... args) {
 		final TabularParser parser = new TabularParser(ShollUtils.csvSample(), "radii_um", "counts");
 		parser.parse();
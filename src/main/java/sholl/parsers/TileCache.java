@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Least-recently-used cache of thresholded tiles, bounded by a memory budget.
+ * Tiles are read from their {@link TileSource} on demand and packed into
+ * 1-bit masks, so that the budget holds 8 to 32 times more tiles than it
+ * would hold raw pixels. Tiles without foreground are remembered at no cost.
+ * A tile is read only once, even if requested concurrently.
+ *
+ * @author Tiago Ferreira
+ */
+final class TileCache {
+
+	/* Placeholder of tiles without foreground */
+	private static final Object EMPTY = new Object();
+
+	private final TileSource source;
+	private final double lowerT;
+	private final double upperT;
+	private final long maxBytes;
+	private final int nCols;
+	private final LinkedHashMap<Integer, Object> tiles = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<Integer, FutureTask<Object>> pending = new HashMap<>();
+	private long bytes;
+
+	/**
+	 * @param source   the source of tiles
+	 * @param lowerT   the lower threshold limit (inclusive)
+	 * @param upperT   the upper threshold limit (inclusive)
+	 * @param maxBytes the memory budget of the cache
+	 */
+	TileCache(final TileSource source, final double lowerT, final double upperT, final long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Memory budget cannot be negative");
+		this.source = source;
+		this.lowerT = lowerT;
+		this.upperT = upperT;
+		this.maxBytes = maxBytes;
+		nCols = (source.getWidth() + source.getTileWidth() - 1) / source.getTileWidth();
+	}
+
+	/**
+	 * Retrieves the thresholded mask of the specified tile, reading it if it is
+	 * not cached. Mask coordinates are relative to the tile origin.
+	 *
+	 * @param tileX the column of the tile
+	 * @param tileY the row of the tile
+	 * @return the mask of the tile, or null if the tile has no foreground
+	 */
+	ForegroundMask getMask(final int tileX, final int tileY) {
+		final Integer key = tileY * nCols + tileX;
+		final FutureTask<Object> task;
+		boolean owner = false;
+		synchronized (this) {
+			final Object tile = tiles.get(key);
+			if (tile != null)
+				return (tile == EMPTY) ? null : (ForegroundMask) tile;
+			FutureTask<Object> existing = pending.get(key);
+			if (existing == null) {
+				existing = new FutureTask<>(() -> {
+					Object result = null;
+					try {
+						result = read(tileX, tileY);
+						return result;
+					} finally {
+						store(key, result);
+					}
+				});
+				pending.put(key, existing);
+				owner = true;
+			}
+			task = existing;
+		}
+		if (owner)
+			task.run();
+		try {
+			final Object tile = task.get();
+			return (tile == EMPTY) ? null : (ForegroundMask) tile;
+		} catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException exc) {
+			final Throwable cause = exc.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/* Reads and thresholds a tile */
+	private Object read(final int tileX, final int tileY) {
+		final int x0 = tileX * source.getTileWidth();
+		final int y0 = tileY * source.getTileHeight();
+		final int w = Math.min(source.getTileWidth(), source.getWidth() - x0);
+		final int h = Math.min(source.getTileHeight(), source.getHeight() - y0);
+		final Object pixels = source.getTile(tileX, tileY);
+		final ForegroundMask mask = new ForegroundMask(0, w - 1, 0, h - 1, 0, 0);
+		mask.fill(0, PixelReader.create(pixels, w, h, lowerT, upperT), () -> true);
+		return (mask.foregroundBounds() == null) ? EMPTY : mask;
+	}
+
+	/* Retains a tile, evicting the least recently used ones */
+	private synchronized void store(final Integer key, final Object tile) {
+		pending.remove(key);
+		if (tile == null)
+			return;
+		final long size = sizeOf(tile);
+		if (size > maxBytes)
+			return;
+		if (tiles.put(key, tile) == null)
+			bytes += size;
+		final Iterator<Object> it = tiles.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= sizeOf(it.next());
+			it.remove();
+		}
+	}
+
+	private long sizeOf(final Object tile) {
+		if (tile == EMPTY)
+			return 0;
+		final long words = (source.getTileWidth() + 63) >>> 6;
+		return 8 * words * source.getTileHeight();
+	}
+
+	/** @return the number of bytes used by cached tiles (upper bound) */
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Discards all cached tiles. */
+	synchronized void clear() {
+		tiles.clear();
+		bytes = 0;
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+/**
+ * A 2D image read on demand as a grid of tiles, e.g., a large slide mosaic
+ * stored on disk. Tiles are numbered from the top-left corner of the image.
+ * Tiles in the last column (or row) may be narrower (or shorter) than the
+ * nominal tile size, if the image dimensions are not multiples of it.
+ * Implementations must allow tiles to be retrieved concurrently.
+ *
+ * @author Tiago Ferreira
+ * @see TiledImageParser2D
+ */
+public interface TileSource {
+
+	/** @return the width of the image, in pixels */
+	int getWidth();
+
+	/** @return the height of the image, in pixels */
+	int getHeight();
+
+	/** @return the nominal width of a tile, in pixels */
+	int getTileWidth();
+
+	/** @return the nominal height of a tile, in pixels */
+	int getTileHeight();
+
+	/**
+	 * Reads the pixels of the specified tile.
+	 *
+	 * @param tileX the column of the tile
+	 * @param tileY the row of the tile
+	 * @return the (row-major) pixel array of the tile: a byte[], short[],
+	 *         float[] or int[] (RGB) array
+	 */
+	Object getTile(int tileX, int tileY);
+
+}
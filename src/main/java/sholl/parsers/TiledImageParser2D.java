@@ -0,0 +1,357 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.thread.ThreadService;
+
+import ij.Prefs;
+import ij.measure.Calibration;
+import sholl.PointCloud;
+import sholl.Profile;
+import sholl.ProfileEntry;
+import sholl.ShollUtils;
+import sholl.UPoint;
+
+/**
+ * Parser for 2D images too large to be held in memory, such as tile-stitched
+ * slide mosaics. The image is read from a {@link TileSource} as a grid of
+ * tiles: Each circle only reads the tiles it crosses, and tiles are kept,
+ * thresholded, in a {@link #setTileCacheSize(long) bounded cache} shared by
+ * all radii. Circles are sampled as by {@link ImageParser2D}: Groups of
+ * 8-connected foreground pixels along the circumference count as one
+ * intersection. Groups are formed on the circumference as a whole, so groups
+ * crossing tile borders are merged and counts do not depend on tile size.
+ * Only one sample is taken per radius.
+ *
+ * @author Tiago Ferreira
+ */
+public class TiledImageParser2D implements Parser {
+
+	private final TileSource source;
+	private final Calibration cal;
+	private final double voxelSize;
+	private final int width;
+	private final int height;
+	private final int tileWidth;
+	private final int tileHeight;
+	private Profile profile;
+	private Properties properties;
+	private UPoint center;
+	private int xc, yc;
+	private double[] radii;
+	private double lowerT = Double.NaN;
+	private double upperT = Double.NaN;
+	private boolean countsOnly;
+	private final boolean doSpikeSupression = true;
+	private int nThreads = Prefs.getThreads();
+	private ExecutorService executorService;
+	private ThreadService threadService;
+	private long tileCacheSize = Runtime.getRuntime().maxMemory() / 4;
+	private TileCache tiles;
+	private final ParseControl control = new ParseControl();
+	private final List<ProfileEntryListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param source the tiled image (uncalibrated)
+	 */
+	public TiledImageParser2D(final TileSource source) {
+		this(source, new Calibration());
+	}
+
+	/**
+	 * @param source the tiled image
+	 * @param cal    the spatial calibration of the image
+	 */
+	public TiledImageParser2D(final TileSource source, final Calibration cal) {
+		if (source.getTileWidth() < 1 || source.getTileHeight() < 1)
+			throw new IllegalArgumentException("Tile dimensions must be > 0");
+		this.source = source;
+		this.cal = cal;
+		width = source.getWidth();
+		height = source.getHeight();
+		tileWidth = source.getTileWidth();
+		tileHeight = source.getTileHeight();
+		voxelSize = (cal.pixelWidth + cal.pixelHeight) / 2;
+		initProfile();
+	}
+
+	private void initProfile() {
+		profile = new Profile();
+		properties = profile.getProperties();
+		properties.setProperty(KEY_SOURCE, SRC_IMG);
+		profile.setNDimensions(2);
+		profile.setSpatialCalibration(cal);
+		if (center != null)
+			profile.setCenter(center);
+		if (!Double.isNaN(lowerT))
+			properties.setProperty(KEY_THRESHOLD_RANGE, lowerT + ":" + upperT);
+	}
+
+	public void setCenterPx(final int x, final int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			throw new IndexOutOfBoundsException("specified coordinates cannot be aplied to image");
+		center = new UPoint(x, y, cal);
+		profile.setCenter(center);
+		xc = x;
+		yc = y;
+	}
+
+	public void setCenter(final double x, final double y) {
+		final UPoint point = new UPoint(x, y, 0);
+		setCenterPx((int) point.rawX(cal), (int) point.rawY(cal));
+		center = point;
+		profile.setCenter(center);
+	}
+
+	public void setThreshold(final double lower, final double upper) {
+		if (Double.isNaN(lower) || Double.isNaN(upper) || lower > upper)
+			throw new IllegalArgumentException("Invalid threshold levels: " + lower + "-" + upper);
+		lowerT = lower;
+		upperT = upper;
+		properties.setProperty(KEY_THRESHOLD_RANGE, lower + ":" + upper);
+	}
+
+	public void setRadii(final double startRadius, final double step, final double endRadius) {
+		final double fStartRadius = (Double.isNaN(startRadius)) ? voxelSize : Math.max(voxelSize, startRadius);
+		final double fStep = (Double.isNaN(step)) ? voxelSize : Math.max(step, voxelSize);
+		setRadii(ShollUtils.getRadii(fStartRadius, fStep, endRadius).stream().mapToDouble(r -> r).toArray());
+	}
+
+	public void setRadii(final double[] radiiArray) {
+		if (radiiArray == null)
+			throw new IllegalArgumentException("radii array cannot be null");
+		radii = radiiArray.clone();
+		Arrays.sort(radii);
+	}
+
+	/**
+	 * @param nThreads the number of threads sampling radii
+	 */
+	public void setThreads(final int nThreads) {
+		if (nThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be > 0");
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Sets the executor running parallel parsing tasks, so that embedding
+	 * applications can share a single pool across parsers. Parsing blocks until
+	 * all of its tasks complete: Unless the pool has spare threads, parsing
+	 * should not be triggered from one of its own threads.
+	 *
+	 * @param executorService the executor service. If null (the default), each
+	 *                        parsing operation spawns its own threads.
+	 */
+	public void setExecutorService(final ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/**
+	 * @param threadService the service creating the threads spawned when no
+	 *                      {@link #setExecutorService(ExecutorService)
+	 *                      executor} is set. If null (the default), plain
+	 *                      threads are created.
+	 */
+	public void setThreadService(final ThreadService threadService) {
+		this.threadService = threadService;
+	}
+
+	/**
+	 * Sets the memory budget of the tile cache. Thresholded tiles are stored at
+	 * 1 bit per pixel: With the default budget (a quarter of the maximum heap)
+	 * a 1GB heap keeps tiles of ~2 gigapixels.
+	 *
+	 * @param bytes the memory budget, in bytes
+	 */
+	public void setTileCacheSize(final long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Memory budget cannot be negative");
+		tileCacheSize = bytes;
+	}
+
+	public long getTileCacheSize() {
+		return tileCacheSize;
+	}
+
+	@Override
+	public void setCountsOnly(final boolean countsOnly) {
+		this.countsOnly = countsOnly;
+	}
+
+	@Override
+	public boolean isCountsOnly() {
+		return countsOnly;
+	}
+
+	@Override
+	public void addProfileEntryListener(final ProfileEntryListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeProfileEntryListener(final ProfileEntryListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void parse() {
+		if (center == null || radii == null)
+			throw new IllegalArgumentException("Cannot proceed with undefined parameters");
+		if (Double.isNaN(lowerT) || Double.isNaN(upperT))
+			throw new IllegalArgumentException("Cannot proceed with undefined threshold levels");
+		initProfile();
+		control.start();
+		tiles = new TileCache(source, lowerT, upperT, tileCacheSize);
+
+		// Workers pull radii in ascending order, so that circles being
+		// sampled concurrently cross mostly the same (cached) tiles
+		final int nRadii = radii.length;
+		final AtomicInteger nextRadius = new AtomicInteger(0);
+		final WorkerPool workers = new WorkerPool(threadService, executorService, nThreads, control::terminate);
+		try {
+			workers.run(workers.threads(nRadii), worker -> {
+				final TileReader reader = new TileReader();
+				for (int i = nextRadius.getAndIncrement(); i < nRadii; i = nextRadius.getAndIncrement()) {
+					if (!control.proceed())
+						return;
+					sample(i, reader);
+				}
+			});
+		} finally {
+			tiles = null;
+		}
+		control.recordStop(profile);
+	}
+
+	/* Samples the circumference of the specified radius */
+	private void sample(final int i, final TileReader reader) {
+		final int intRadius = (int) Math.round(radii[i] / voxelSize);
+		final int[][] points = (intRadius < 1) ? new int[0][] : getTargetCircumferencePoints(intRadius, reader);
+		final int[] representatives = RingGroups.representatives(points, doSpikeSupression, reader::foreground);
+		final ProfileEntry entry;
+		if (countsOnly) {
+			entry = new ProfileEntry(radii[i], representatives.length);
+		} else {
+			final PointCloud sPoints = new PointCloud(representatives.length);
+			final double z = cal.getZ(0);
+			for (final int p : representatives)
+				sPoints.add(cal.getX(points[p][0]), cal.getY(points[p][1]), z);
+			entry = new ProfileEntry(radii[i], sPoints);
+		}
+		profile.add(entry);
+		for (final ProfileEntryListener listener : listeners)
+			listener.entryParsed(entry);
+	}
+
+	/*
+	 * Retrieves the foreground circumference points of the specified radius, in
+	 * ring order. Only the tiles crossed by the circumference are read
+	 */
+	private int[][] getTargetCircumferencePoints(final int radius, final TileReader reader) {
+		final CircleOffsets offsets = CircleOffsets.get(radius);
+		final int n = offsets.size();
+		final int[] targets = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (reader.foreground(xc + offsets.dx(i), yc + offsets.dy(i)))
+				targets[count++] = i;
+		}
+		final int[][] points = new int[count][];
+		for (int i = 0; i < count; i++)
+			points[i] = new int[] { xc + offsets.dx(targets[i]), yc + offsets.dy(targets[i]) };
+		return points;
+	}
+
+	/*
+	 * Per-thread access to the tile cache. Consecutive circumference points
+	 * mostly lie in the same tile, so the last retrieved tile is kept at hand
+	 */
+	private final class TileReader {
+
+		private int tileX = -1;
+		private int tileY = -1;
+		private ForegroundMask mask;
+
+		boolean foreground(final int x, final int y) {
+			if (x < 0 || x >= width || y < 0 || y >= height)
+				return false;
+			final int tx = x / tileWidth;
+			final int ty = y / tileHeight;
+			if (tx != tileX || ty != tileY) {
+				mask = tiles.getMask(tx, ty);
+				tileX = tx;
+				tileY = ty;
+			}
+			return mask != null && mask.get(x - tx * tileWidth, y - ty * tileHeight, 0);
+		}
+	}
+
+	@Override
+	public Profile getProfile() {
+		return profile;
+	}
+
+	@Override
+	public boolean successful() {
+		return !profile.isEmpty();
+	}
+
+	@Override
+	public void terminate() {
+		control.terminate();
+	}
+
+	/**
+	 * Sets a time budget for {@link #parse()}. Once the budget is exhausted,
+	 * parsing stops and the radii sampled so far are retained in a profile
+	 * flagged as {@link Profile#isIncomplete() incomplete}. Radii are sampled
+	 * in ascending order, so that partial profiles are populated from the
+	 * starting radius.
+	 *
+	 * @param budget the maximum parsing time. Zero (the default) means no
+	 *               limit
+	 * @param unit   the time unit of budget
+	 */
+	@Override
+	public void setTimeBudget(final long budget, final TimeUnit unit) {
+		control.setTimeBudget(budget, unit);
+	}
+
+	public long getTimeBudget(final TimeUnit unit) {
+		return control.getTimeBudget(unit);
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Arrays;
+
+/**
+ * Clusters the voxels intercepting a shell into 26-connected components, i.e.,
+ * voxels at a 3D chessboard (Chebyshev) distance of 1 belong to the same
+ * cluster. Runs in linear time: Voxels are indexed in an open-addressing hash
+ * table and merged with their lexicographically preceding neighbors using
+ * union-find.
+ *
+ * @author Tiago Ferreira
+ */
+final class VoxelClusterer {
+
+	/* Offsets of the 13 neighbors preceding a voxel in (z,y,x) order */
+	private static final int[][] PRECEDING = new int[13][];
+	static {
+		int i = 0;
+		for (int dz = -1; dz <= 0; dz++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					if (dz == 0 && (dy > 0 || (dy == 0 && dx >= 0)))
+						continue;
+					PRECEDING[i++] = new int[] { dx, dy, dz };
+				}
+			}
+		}
+	}
+
+	private static final int BITS = 21;
+	private static final int MAX_COORD = (1 << BITS) - 1;
+	private static final long EMPTY = -1L;
+
+	private final VoxelList voxels;
+	private final int[] parent;
+	private long[] keys;
+	private int[] values;
+	private int mask;
+
+	private VoxelClusterer(final VoxelList voxels) {
+		this.voxels = voxels;
+		parent = new int[voxels.size()];
+		for (int i = 0; i < parent.length; i++)
+			parent[i] = i;
+	}
+
+	/**
+	 * Retrieves the representatives of each 26-connected cluster.
+	 *
+	 * @param voxels the voxels to be clustered
+	 * @return the indices of the first voxel (in list order) of each cluster,
+	 *         sorted in ascending order
+	 */
+	static int[] representatives(final VoxelList voxels) {
+		final VoxelClusterer clusterer = new VoxelClusterer(voxels);
+		clusterer.cluster();
+		return clusterer.roots();
+	}
+
+	private void cluster() {
+		final int n = voxels.size();
+		if (n < 2)
+			return;
+		index();
+		for (int i = 0; i < n; i++) {
+			final int x = voxels.x(i);
+			final int y = voxels.y(i);
+			final int z = voxels.z(i);
+			for (final int[] offset : PRECEDING) {
+				final int nx = x + offset[0];
+				final int ny = y + offset[1];
+				final int nz = z + offset[2];
+				if (nx < 0 || ny < 0 || nz < 0)
+					continue;
+				final int j = get(key(nx, ny, nz));
+				if (j >= 0)
+					union(i, j);
+			}
+		}
+	}
+
+	private int[] roots() {
+		int count = 0;
+		for (int i = 0; i < parent.length; i++)
+			if (parent[i] == i)
+				count++;
+		final int[] roots = new int[count];
+		for (int i = 0, j = 0; i < parent.length; i++)
+			if (parent[i] == i)
+				roots[j++] = i;
+		return roots;
+	}
+
+	private int find(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]]; // path halving
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/* The root of a cluster is always its lowest index */
+	private void union(final int i, final int j) {
+		final int ri = find(i);
+		final int rj = find(j);
+		if (ri < rj)
+			parent[rj] = ri;
+		else if (rj < ri)
+			parent[ri] = rj;
+	}
+
+	private void index() {
+		final int n = voxels.size();
+		final int capacity = Integer.highestOneBit(Math.max(2, n * 2 - 1)) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		Arrays.fill(keys, EMPTY);
+		for (int i = 0; i < n; i++) {
+			final long key = key(voxels.x(i), voxels.y(i), voxels.z(i));
+			int slot = slot(key);
+			while (keys[slot] != EMPTY && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			if (keys[slot] == EMPTY) { // keep first occurrence of duplicates
+				keys[slot] = key;
+				values[slot] = i;
+			} else {
+				union(values[slot], i);
+			}
+		}
+	}
+
+	private int get(final long key) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key)
+				return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int slot(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private static long key(final int x, final int y, final int z) {
+		if (x > MAX_COORD || y > MAX_COORD || z > MAX_COORD)
+			throw new IllegalArgumentException("Voxel coordinates exceed " + MAX_COORD);
+		return ((long) z << (2 * BITS)) | ((long) y << BITS) | x;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of (raw, uncalibrated) voxel coordinates, stored as
+ * consecutive (x, y, z) triplets in a single primitive array.
+ *
+ * @author Tiago Ferreira
+ */
+class VoxelList {
+
+	private int[] xyz;
+	private int size;
+
+	VoxelList() {
+		this(16);
+	}
+
+	VoxelList(final int initialCapacity) {
+		xyz = new int[3 * Math.max(1, initialCapacity)];
+	}
+
+	void add(final int x, final int y, final int z) {
+		ensureCapacity(size + 1);
+		final int idx = 3 * size++;
+		xyz[idx] = x;
+		xyz[idx + 1] = y;
+		xyz[idx + 2] = z;
+	}
+
+	void addAll(final VoxelList other) {
+		if (other == null || other.size == 0)
+			return;
+		ensureCapacity(size + other.size);
+		System.arraycopy(other.xyz, 0, xyz, 3 * size, 3 * other.size);
+		size += other.size;
+	}
+
+	int x(final int index) {
+		return xyz[3 * index];
+	}
+
+	int y(final int index) {
+		return xyz[3 * index + 1];
+	}
+
+	int z(final int index) {
+		return xyz[3 * index + 2];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Sorts voxels in raster (z, y, x) order, i.e., the order in which they
+	 * are retrieved by a scan of the volume. Coordinates must be non-negative
+	 * and smaller than 2^21.
+	 */
+	void sort() {
+		final long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) z(i) << 42) | ((long) y(i) << 21) | x(i);
+		Arrays.sort(keys);
+		for (int i = 0; i < size; i++) {
+			final long key = keys[i];
+			xyz[3 * i] = (int) (key & 0x1FFFFF);
+			xyz[3 * i + 1] = (int) ((key >>> 21) & 0x1FFFFF);
+			xyz[3 * i + 2] = (int) (key >>> 42);
+		}
+	}
+
+	private void ensureCapacity(final int minCapacity) {
+		if (3 * minCapacity <= xyz.length)
+			return;
+		final int newCapacity = Math.max(minCapacity, (xyz.length / 3) * 2);
+		xyz = Arrays.copyOf(xyz, 3 * newCapacity);
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+import org.scijava.thread.ThreadService;
+
+/**
+ * Runs the parallel workers of a parser, on a shared {@link ExecutorService}
+ * if one has been set, or on threads created by the SciJava
+ * {@link ThreadService} otherwise. Workers are expected to pull tasks from a
+ * shared queue until it is exhausted or parsing is aborted.
+ *
+ * @author Tiago Ferreira
+ */
+final class WorkerPool {
+
+	private final ThreadService threadService;
+	private final ExecutorService executorService;
+	private final int maxThreads;
+	private final Runnable abort;
+
+	/**
+	 * @param threadService   the service creating worker threads. If null
+	 *                        (and no executor is set), plain threads are
+	 *                        created.
+	 * @param executorService the executor running workers. May be null.
+	 * @param maxThreads      the maximum number of concurrent workers
+	 * @param abort           called when a worker fails or the calling
+	 *                        thread is interrupted, so that remaining
+	 *                        workers stop
+	 */
+	WorkerPool(final ThreadService threadService, final ExecutorService executorService, final int maxThreads,
+			final Runnable abort) {
+		if (maxThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be > 0");
+		this.threadService = threadService;
+		this.executorService = executorService;
+		this.maxThreads = maxThreads;
+		this.abort = abort;
+	}
+
+	/**
+	 * @param nTasks the number of tasks to be parallelized
+	 * @return the number of workers that should process the tasks
+	 */
+	int threads(final int nTasks) {
+		return Math.max(1, Math.min(maxThreads, nTasks));
+	}
+
+	/**
+	 * Runs the specified worker in parallel, blocking until all instances
+	 * complete. If a worker fails, the remaining workers are aborted and the
+	 * failure is rethrown.
+	 *
+	 * @param nWorkers the number of workers
+	 * @param worker   the worker. It is given its (0-based) worker index.
+	 */
+	void run(final int nWorkers, final IntConsumer worker) {
+		if (nWorkers <= 1) {
+			worker.accept(0);
+			return;
+		}
+		if (executorService == null) {
+			runOnThreads(nWorkers, worker);
+			return;
+		}
+		// Workers not yet started when aborted are claimed, so that they never
+		// run, and running workers are waited for: No worker writes results
+		// once this call returns
+		final AtomicBoolean[] claimed = new AtomicBoolean[nWorkers];
+		final CountDownLatch finished = new CountDownLatch(nWorkers);
+		final List<Future<?>> futures = new ArrayList<>(nWorkers);
+		for (int t = 0; t < nWorkers; t++) {
+			final int id = t;
+			claimed[t] = new AtomicBoolean();
+			futures.add(executorService.submit(() -> {
+				if (!claimed[id].compareAndSet(false, true))
+					return;
+				try {
+					worker.accept(id);
+				} finally {
+					finished.countDown();
+				}
+			}));
+		}
+		for (final Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (final InterruptedException e) {
+				stop(futures, claimed, finished);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final ExecutionException e) {
+				stop(futures, claimed, finished);
+				rethrow(e.getCause());
+			}
+		}
+	}
+
+	/* Aborts workers running on the executor and waits for them to exit */
+	private void stop(final List<Future<?>> futures, final AtomicBoolean[] claimed, final CountDownLatch finished) {
+		abort.run();
+		for (int t = 0; t < claimed.length; t++) {
+			if (claimed[t].compareAndSet(false, true)) {
+				futures.get(t).cancel(false);
+				finished.countDown();
+			}
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				finished.await();
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/*
+	 * Runs workers on their own threads. Threads are always joined, so that no
+	 * worker outlives this call, even if the calling thread is interrupted
+	 */
+	private void runOnThreads(final int nWorkers, final IntConsumer worker) {
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread[] threads = new Thread[nWorkers];
+		for (int t = 0; t < nWorkers; t++) {
+			final int id = t;
+			final Runnable task = () -> {
+				try {
+					worker.accept(id);
+				} catch (final Throwable exc) {
+					failure.compareAndSet(null, exc);
+					abort.run();
+				}
+			};
+			threads[t] = (threadService == null) ? new Thread(task) : threadService.newThread(task);
+		}
+		for (final Thread thread : threads)
+			thread.start();
+		boolean interrupted = false;
+		for (final Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (final InterruptedException e) {
+					if (!interrupted)
+						abort.run();
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure.get() != null)
+			rethrow(failure.get());
+	}
+
+	private static void rethrow(final Throwable cause) {
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		throw new IllegalStateException(cause);
+	}
+
+}
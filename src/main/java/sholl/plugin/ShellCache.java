@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sholl.PointCloud;
+import sholl.Profile;
+import sholl.ProfileEntry;
+import sholl.parsers.ImageParser;
+
+/**
+ * Cache of parsed shells for the dataset being analyzed, so that repeated
+ * runs only parse radii that have not been parsed before. Shells are grouped
+ * by a key describing all the parameters that affect parsing (center,
+ * threshold, position, hemishells, etc.); only the most recently used
+ * parameter sets are retained.
+ * <p>
+ * Parsing bounds depend on the largest radius being parsed (and, on
+ * anisotropic images, may not enclose it entirely), so that a shell may
+ * differ when parsed within a different range. For this reason keys also
+ * include the parsing bounds, and the {@link ImageParser#getDataStamp() stamp}
+ * of the analyzed data, so that images edited in place are parsed anew. The
+ * stamp is retrieved without reading the image: Neither hits nor misses cost
+ * an additional pass over the data.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+class ShellCache {
+
+	private static final int MAX_PARAMETER_SETS = 4;
+
+	private final Map<String, Map<Double, ProfileEntry>> shells = new LinkedHashMap<String, Map<Double, ProfileEntry>>(
+			MAX_PARAMETER_SETS + 1, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Map<Double, ProfileEntry>> eldest) {
+			return size() > MAX_PARAMETER_SETS;
+		}
+	};
+
+	/**
+	 * Builds a cache key from the parameters affecting parsing.
+	 *
+	 * @param parameters the parsing parameters
+	 * @return the key
+	 */
+	static String key(final Object... parameters) {
+		final StringBuilder sb = new StringBuilder();
+		for (final Object parameter : parameters)
+			sb.append(parameter).append('|');
+		return sb.toString();
+	}
+
+	/**
+	 * Parses the radii of a parser, retrieving shells parsed by previous runs
+	 * from the cache, so that only new radii are parsed. Cached shells are
+	 * reused only if they were parsed with the same parameters, within the
+	 * same bounds, and from the same data. Shells of interrupted runs are not
+	 * cached.
+	 *
+	 * @param parser     the parser, with radii and bounds already set
+	 * @param parameters the {@link #key(Object...) key} of the remaining
+	 *                   parameters affecting parsing
+	 * @param parse      parses the radii of parser (e.g., parser::parse)
+	 * @return the number of shells retrieved from the cache
+	 */
+	int parse(final ImageParser parser, final String parameters, final Runnable parse) {
+		final double[] radii = parser.getRadii();
+		final String key = key(parameters, Arrays.toString(parser.getBounds()), parser.getDataStamp());
+		final List<ProfileEntry> cachedEntries = new ArrayList<>();
+		final double[] newRadii = new double[radii.length];
+		int nNewRadii = 0;
+		for (final double radius : radii) {
+			final ProfileEntry entry = get(key, radius);
+			if (entry == null)
+				newRadii[nNewRadii++] = radius;
+			else
+				cachedEntries.add(entry);
+		}
+		if (nNewRadii > 0) {
+			if (!cachedEntries.isEmpty())
+				parser.setRadii(Arrays.copyOf(newRadii, nNewRadii));
+			try {
+				parse.run();
+			} finally {
+				parser.setRadii(radii);
+			}
+			if (!parser.getProfile().isIncomplete())
+				put(key, parser.getProfile());
+		}
+		final Profile profile = parser.getProfile();
+		for (final ProfileEntry entry : cachedEntries)
+			profile.add(entry);
+		return cachedEntries.size();
+	}
+
+	/**
+	 * Retrieves a cached shell.
+	 *
+	 * @param key    the key of the parsing parameters, bounds and data
+	 * @param radius the radius of the shell
+	 * @return a copy of the cached entry, or null if the shell is not cached
+	 */
+	synchronized ProfileEntry get(final String key, final double radius) {
+		final Map<Double, ProfileEntry> map = shells.get(key);
+		if (map == null)
+			return null;
+		final ProfileEntry shell = map.get(radius);
+		return (shell == null) ? null : copy(shell);
+	}
+
+	/**
+	 * Stores the shells of a parsed profile.
+	 *
+	 * @param key     the key of the parsing parameters, bounds and data
+	 * @param profile the parsed profile
+	 */
+	synchronized void put(final String key, final Profile profile) {
+		Map<Double, ProfileEntry> map = shells.get(key);
+		if (map == null) {
+			map = new HashMap<>();
+			shells.put(key, map);
+		}
+		for (final ProfileEntry entry : profile.entries())
+			map.put(entry.radius, copy(entry));
+	}
+
+	synchronized void clear() {
+		shells.clear();
+	}
+
+	/* Cached points are never shared with profiles, which may rescale them */
+	private static ProfileEntry copy(final ProfileEntry entry) {
+		return new ProfileEntry(entry.radius, entry.count,
+				(entry.points == null) ? null : new PointCloud(entry.points));
+	}
+
+}
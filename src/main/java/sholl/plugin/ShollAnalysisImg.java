@@ -21,6 +21,7 @@
  */
 package sholl.plugin;
 
+import java.awt.EventQueue;
 import java.awt.Rectangle;
 import java.io.File;
 import java.net.URL;
@@ -32,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
@@ -89,6 +91,7 @@ import sholl.math.NormalizedProfileStats;
 import sholl.parsers.ImageParser;
 import sholl.parsers.ImageParser2D;
 import sholl.parsers.ImageParser3D;
+import sholl.parsers.ProfileEntryListener;
 
 /**
  * Implements the Analyze:Sholl:Sholl Analysis (From Image)...
@@ -291,6 +294,7 @@ public class ShollAnalysisImg extends DynamicCommand {
 	private int scope;
 	private DefaultGenericTable commonSummaryTable;
 	private Display<?> detailedTableDisplay;
+	private final ShellCache shellCache = new ShellCache();
 
 	/* Preferences */
 //	private boolean autoClose;
@@ -302,6 +306,7 @@ public class ShollAnalysisImg extends DynamicCommand {
 	public void onEvent(final DataDeletedEvent evt) {
 		if (evt.getObject().equals(dataset)) {
 			imp = null;
+			shellCache.clear();
 			cancel(NO_IMAGE);
 			logger.debug(evt);
 		}
@@ -528,6 +533,7 @@ public class ShollAnalysisImg extends DynamicCommand {
 
 	private void loadDataset(final ImagePlus imp) {
 		this.imp = imp;
+		shellCache.clear();
 		dataset = convertService.convert(imp, Dataset.class);
 		twoD = dataset.getDepth() == 1;
 		posC = imp.getC();
@@ -948,6 +954,53 @@ public class ShollAnalysisImg extends DynamicCommand {
 	}
 
 	/** Private classes **/
+	/*
+	 * Preview of the linear Sholl plot, updated as entries are parsed. Updates
+	 * are throttled and performed on the event dispatch thread
+	 */
+	private class LivePlot implements ProfileEntryListener {
+
+		private static final long UPDATE_INTERVAL = 250; // ms
+		private final Profile preview = new Profile();
+		private final AtomicLong lastUpdate = new AtomicLong();
+		private ShollPlot plot;
+		private boolean closed;
+
+		private LivePlot() {
+			preview.assignImage(imp);
+			preview.setCenter(center);
+		}
+
+		@Override
+		public void entryParsed(final ProfileEntry entry) {
+			preview.add(new ProfileEntry(entry.radius, entry.count));
+			final long now = System.currentTimeMillis();
+			final long last = lastUpdate.get();
+			if (now - last >= UPDATE_INTERVAL && lastUpdate.compareAndSet(last, now))
+				EventQueue.invokeLater(this::update);
+		}
+
+		private void update() {
+			if (closed)
+				return;
+			final LinearProfileStats stats = new LinearProfileStats(preview);
+			if (plot == null || !plot.isVisible()) {
+				plot = new ShollPlot(stats);
+				plot.show();
+			} else {
+				plot.rebuild(stats);
+			}
+		}
+
+		private void close() {
+			EventQueue.invokeLater(() -> {
+				closed = true;
+				if (plot != null && plot.isVisible())
+					plot.getImagePlus().getWindow().close();
+			});
+		}
+	}
+
 	class AnalysisRunner implements Runnable {
 
 		private final ImageParser parser;
@@ -980,7 +1033,7 @@ public class ShollAnalysisImg extends DynamicCommand {
 			if (!validOutput()) return;
 
 			if (!skipParsing) {
-				parser.parse();
+				parse();
 				if (!parser.successful()) {
 					helper.error("No valid profile retrieved.", null);
 					return;
@@ -995,7 +1048,7 @@ public class ShollAnalysisImg extends DynamicCommand {
 					readThresholdFromImp();
 				}
 				if (!validRequirements()) return;
-				parser.parse();
+				parse();
 				if (!parser.successful()) {
 					helper.error("No valid profile retrieved.", "Re-run Failed");
 					return;
@@ -1106,6 +1159,41 @@ public class ShollAnalysisImg extends DynamicCommand {
 			}
 		}
 
+		/*
+		 * Parses the image. Shells parsed by previous runs with the same
+		 * parameters are retrieved from the cache, so that only new radii are
+		 * parsed
+		 */
+		private void parse() {
+			final int nCached = shellCache.parse(parser, cacheKey(), this::parseImage);
+			logger.debug("Reused " + nCached + "/" + parser.getRadii().length + " cached shells");
+		}
+
+		/* Parameters affecting the parsing of a shell, other than bounds and data */
+		private String cacheKey() {
+			final boolean skipSingleVoxels = (parser instanceof ImageParser3D)
+					&& ((ImageParser3D) parser).isSkipSingleVoxels();
+			return ShellCache.key(imp.getID(), parser.getClass().getName(), center.x, center.y, center.z, lowerT,
+					upperT, posC, posT, hemiShellChoice, nSpans, nSpansIntChoice, skipSingleVoxels, cal.pixelWidth,
+					cal.pixelHeight, cal.pixelDepth, cal.xOrigin, cal.yOrigin, cal.zOrigin);
+		}
+
+		/* Parses the image, plotting entries as they are parsed if plots were requested */
+		private void parseImage() {
+			final LivePlot livePlot = (!plotOutputDescription.startsWith("None") && !uiService.isHeadless())
+					? new LivePlot() : null;
+			if (livePlot != null)
+				parser.addProfileEntryListener(livePlot);
+			try {
+				parser.parse();
+			} finally {
+				if (livePlot != null) {
+					parser.removeProfileEntryListener(livePlot);
+					livePlot.close();
+				}
+			}
+		}
+
 		private void showMask() {
 			final ImagePlus mask = parser.getMask();
 			if (!lutChoice.contains("No LUT.")) mask.getProcessor().setLut(ShollUtils
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.SortedSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Profile}.
+ *
+ * @author Tiago Ferreira
+ */
+public class ProfileTest {
+
+	private static Profile profile() {
+		return new Profile(new double[][] { { 10, 1 }, { 20, 4 }, { 30, 2 }, { 40, 0 } });
+	}
+
+	@Test
+	public void testEntriesReflectLaterChanges() {
+		final Profile profile = profile();
+		final SortedSet<ProfileEntry> entries = profile.entries();
+		assertEquals(4, entries.size());
+		profile.add(new ProfileEntry(15, 3));
+		profile.trimZeroEntries();
+		assertEquals(4, entries.size());
+		assertEquals(15, entries.headSet(new ProfileEntry(20, 0)).last().radius, 0);
+		assertEquals(30, entries.last().radius, 0);
+		assertTrue(entries.contains(new ProfileEntry(15, 0)));
+		assertFalse(entries.contains(new ProfileEntry(40, 0)));
+	}
+
+	@Test
+	public void testEntriesWriteThrough() {
+		final Profile profile = profile();
+		final double[] counts = profile.countsView();
+		for (final ProfileEntry entry : profile.entries())
+			entry.count *= 2;
+		assertArrayEquals(new double[] { 2, 8, 4, 0 }, profile.countsView(), 0);
+		assertArrayEquals(new double[] { 1, 4, 2, 0 }, counts, 0); // views never change
+		profile.entries().first().radius = 35;
+		assertArrayEquals(new double[] { 20, 30, 35, 40 }, profile.radiiView(), 0);
+		assertArrayEquals(new double[] { 8, 4, 2, 0 }, profile.countsView(), 0);
+	}
+
+	@Test
+	public void testScaleUpdatesEntries() {
+		final Profile profile = profile();
+		final ProfileEntry last = profile.entries().last();
+		profile.scale(2, 2, 2);
+		assertEquals(80, last.radius, 1e-9);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testEntriesRejectAdditions() {
+		profile().entries().add(new ProfileEntry(50, 1));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testEntriesRejectRemovals() {
+		final Iterator<ProfileEntry> it = profile().entries().iterator();
+		it.next();
+		it.remove();
+	}
+
+}
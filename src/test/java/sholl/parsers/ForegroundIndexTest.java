@@ -0,0 +1,171 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import sholl.ProfileProperties;
+import sholl.UPoint;
+
+/**
+ * Tests for {@link ForegroundIndex} persistence.
+ *
+ * @author Tiago Ferreira
+ */
+public class ForegroundIndexTest {
+
+	private static final int WIDTH = 20, HEIGHT = 15, DEPTH = 4;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("index", ".gz");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static ForegroundIndex index() {
+		final ForegroundMask mask = new ForegroundMask(0, WIDTH - 1, 0, HEIGHT - 1, 0, DEPTH - 1);
+		for (int z = 0; z < DEPTH; z++) {
+			mask.clear(z);
+			for (int x = 0; x < WIDTH; x += 3)
+				mask.set(x, (x + z) % HEIGHT, z);
+		}
+		final Calibration cal = new Calibration();
+		cal.pixelDepth = 2;
+		final DistanceMap map = new DistanceMap(WIDTH, HEIGHT, DEPTH, cal, new UPoint(10, 7, 1));
+		return ForegroundIndex.build("key", mask, WIDTH, HEIGHT, 0, DEPTH - 1, map);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final ForegroundIndex index = index();
+		index.save(file);
+		final ForegroundIndex loaded = ForegroundIndex.load(file);
+		assertEquals(index.getKey(), loaded.getKey());
+		assertTrue(loaded.hasExtent(WIDTH, HEIGHT, 0, DEPTH - 1));
+		assertEquals(index.size(), loaded.size());
+		for (int i = 0; i < index.size(); i++) {
+			assertEquals(index.x(i), loaded.x(i));
+			assertEquals(index.y(i), loaded.y(i));
+			assertEquals(index.z(i), loaded.z(i));
+			assertEquals(index.distanceSquared(i), loaded.distanceSquared(i), 0);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsSerializedObjects() throws IOException {
+		try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+			out.writeObject("not an index");
+		}
+		ForegroundIndex.load(file);
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsVoxelsOutsideExtent() throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(0x53484F49);
+			out.writeInt(1);
+			out.writeUTF("key");
+			out.writeInt(WIDTH);
+			out.writeInt(HEIGHT);
+			out.writeInt(0);
+			out.writeInt(DEPTH - 1);
+			out.writeInt(1);
+			out.writeInt(WIDTH); // out of bounds
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeDouble(1);
+		}
+		ForegroundIndex.load(file);
+	}
+
+	private static ImageParser3D parser(final ImagePlus imp, final Context context, final boolean indexed) {
+		final ImageParser3D parser = new ImageParser3D(imp, context);
+		parser.setCenterPx(15, 15, 2);
+		parser.setRadii(1, 1, 12);
+		parser.setHemiShells(ProfileProperties.HEMI_NONE);
+		parser.setThreshold(1, 255);
+		parser.setIndexed(indexed);
+		return parser;
+	}
+
+	@Test
+	public void testChangedImageIsReindexed() {
+		final ImageStack stack = new ImageStack(31, 31);
+		for (int z = 0; z < 5; z++) {
+			final ByteProcessor ip = new ByteProcessor(31, 31);
+			for (int x = 0; x < 31; x++)
+				ip.set(x, 15, (z == 2) ? 255 : 0);
+			stack.addSlice("", ip);
+		}
+		final ImagePlus imp = new ImagePlus("branch", stack);
+		final Context context = new Context(StatusService.class, ThreadService.class);
+		try {
+			final ImageParser3D parser = parser(imp, context, true);
+			parser.parse();
+			final ForegroundIndex index = parser.getForegroundIndex();
+			parser.reset();
+			parser.parse();
+			assertSame(index, parser.getForegroundIndex());
+			// erase half of the branch in place
+			for (int x = 0; x < 15; x++)
+				((ByteProcessor) stack.getProcessor(3)).set(x, 15, 0);
+			ImageParser.imageChanged(imp);
+			parser.reset();
+			parser.parse();
+			assertNotSame(index, parser.getForegroundIndex());
+			final ImageParser3D fresh = parser(imp, context, false);
+			fresh.parse();
+			assertArrayEquals(fresh.getProfile().countsAsArray(), parser.getProfile().countsAsArray(), 0);
+		} finally {
+			context.dispose();
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import sholl.Profile;
+import sholl.ProfileProperties;
+import sholl.UPoint;
+
+/**
+ * Tests that multi-center parsing retrieves, for each center, the profile of
+ * a separate single-center run.
+ *
+ * @author Tiago Ferreira
+ */
+public class MultiCenterTest {
+
+	private static final int WIDTH = 120, HEIGHT = 60, DEPTH = 7;
+
+	/* centers of a large and a small cross */
+	private static final int[][] CENTERS = { { 30, 30, 3 }, { 90, 30, 3 } };
+	private static final int[] ARMS = { 25, 8 };
+
+	private Context context;
+	private ImagePlus imp;
+
+	@Before
+	public void setUp() {
+		context = new Context(StatusService.class, ThreadService.class);
+		imp = crosses();
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/* Two crosses with arms of different length, so that profiles end apart */
+	private static ImagePlus crosses() {
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; z++) {
+			final ByteProcessor ip = new ByteProcessor(WIDTH, HEIGHT);
+			if (Math.abs(z - 3) <= 1) {
+				for (int c = 0; c < CENTERS.length; c++) {
+					final int xc = CENTERS[c][0], yc = CENTERS[c][1];
+					for (int i = -ARMS[c]; i <= ARMS[c]; i++) {
+						for (int t = -1; t <= 1; t++) {
+							ip.set(xc + i, yc + t, 255);
+							ip.set(xc + t, yc + i, 255);
+						}
+					}
+				}
+			}
+			stack.addSlice("", ip);
+		}
+		return new ImagePlus("crosses", stack);
+	}
+
+	private ImageParser3D parser(final boolean adaptive) {
+		final ImageParser3D parser = new ImageParser3D(imp, context);
+		parser.setCenterPx(CENTERS[0][0], CENTERS[0][1], CENTERS[0][2]);
+		parser.setRadii(2, 1, 28);
+		parser.setHemiShells(ProfileProperties.HEMI_NONE);
+		parser.setThreshold(1, 255);
+		parser.setAdaptiveEndRadius(adaptive);
+		parser.setMaxEmptyShells(2);
+		return parser;
+	}
+
+	private Profile singleCenterProfile(final int c, final boolean adaptive) {
+		final ImageParser3D parser = parser(adaptive);
+		parser.setCenterPx(CENTERS[c][0], CENTERS[c][1], CENTERS[c][2]);
+		parser.setHemiShells(ProfileProperties.HEMI_NONE);
+		parser.parse();
+		return parser.getProfile();
+	}
+
+	private static void assertSameProfile(final Profile expected, final Profile actual) {
+		assertArrayEquals(expected.radiiAsArray(), actual.radiiAsArray(), 0);
+		assertArrayEquals(expected.countsAsArray(), actual.countsAsArray(), 0);
+		for (final String key : new String[] { ProfileProperties.KEY_INCOMPLETE, ProfileProperties.KEY_STOP_RADIUS,
+				ProfileProperties.KEY_STOP_REASON }) {
+			assertEquals(key, expected.getProperties().getProperty(key), actual.getProperties().getProperty(key));
+		}
+	}
+
+	/*
+	 * Parses all centers twice, so that the second parse follows a
+	 * multi-center one. Profiles of the first parse must remain unchanged
+	 */
+	private void assertSameAsSingleCenterRuns(final boolean adaptive) {
+		final ImageParser3D parser = parser(adaptive);
+		final UPoint[] points = new UPoint[CENTERS.length];
+		for (int c = 0; c < CENTERS.length; c++)
+			points[c] = new UPoint(CENTERS[c][0], CENTERS[c][1], CENTERS[c][2], imp.getCalibration());
+		parser.setCenters(Arrays.asList(points));
+		parser.parse();
+		final List<Profile> firstProfiles = parser.getProfiles();
+		parser.parse();
+		final List<Profile> profiles = parser.getProfiles();
+		assertEquals(CENTERS.length, profiles.size());
+		for (int c = 0; c < CENTERS.length; c++) {
+			final Profile expected = singleCenterProfile(c, adaptive);
+			assertSameProfile(expected, firstProfiles.get(c));
+			assertSameProfile(expected, profiles.get(c));
+		}
+	}
+
+	@Test
+	public void testFixedEndRadius() {
+		assertSameAsSingleCenterRuns(false);
+	}
+
+	@Test
+	public void testAdaptiveEndRadius() {
+		assertSameAsSingleCenterRuns(true);
+	}
+
+}
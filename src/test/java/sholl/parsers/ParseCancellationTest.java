@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import sholl.Profile;
+import sholl.ProfileProperties;
+
+/**
+ * Tests that parsers remain usable after parsing has been terminated.
+ *
+ * @author Tiago Ferreira
+ */
+public class ParseCancellationTest {
+
+	private Context context;
+
+	@Before
+	public void setUp() {
+		context = new Context(StatusService.class, ThreadService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/* Stack with 3-pixel thick branches along X and Y, crossing at the center */
+	private static ImagePlus crossImage(final int size, final int nSlices) {
+		final int c = size / 2;
+		final ImageStack stack = new ImageStack(size, size);
+		for (int z = 0; z < nSlices; z++) {
+			final ByteProcessor ip = new ByteProcessor(size, size);
+			if (Math.abs(z - nSlices / 2) <= 1) {
+				for (int i = 0; i < size; i++) {
+					for (int t = -1; t <= 1; t++) {
+						ip.set(i, c + t, 255);
+						ip.set(c + t, i, 255);
+					}
+				}
+			}
+			stack.addSlice("", ip);
+		}
+		return new ImagePlus("cross", stack);
+	}
+
+	private static void setup(final ImageParser parser, final int c, final int z) {
+		parser.setCenterPx(c, c, z);
+		parser.setRadii(2, 1, c - 2);
+		parser.setHemiShells(ProfileProperties.HEMI_NONE);
+		parser.setThreshold(1, 255);
+	}
+
+	/* Terminates the first parse as soon as a shell is parsed, then parses again */
+	private static void assertParsesAfterTermination(final ImageParser parser, final Profile expected) {
+		final ProfileEntryListener abort = entry -> parser.terminate();
+		parser.addProfileEntryListener(abort);
+		parser.parse();
+		assertTrue(parser.getProfile().isIncomplete());
+		parser.removeProfileEntryListener(abort);
+		parser.reset();
+		parser.parse();
+		final Profile profile = parser.getProfile();
+		assertFalse(profile.isIncomplete());
+		assertArrayEquals(expected.radiiAsArray(), profile.radiiAsArray(), 0);
+		assertArrayEquals(expected.countsAsArray(), profile.countsAsArray(), 0);
+	}
+
+	@Test
+	public void test2DParserRecoversFromTermination() {
+		final ImagePlus imp = crossImage(81, 1);
+		final ImageParser2D fresh = new ImageParser2D(imp, context);
+		setup(fresh, 40, 1);
+		fresh.parse();
+		final ImageParser2D parser = new ImageParser2D(imp, context);
+		setup(parser, 40, 1);
+		assertParsesAfterTermination(parser, fresh.getProfile());
+	}
+
+	@Test
+	public void test3DParserRecoversFromTermination() {
+		final ImagePlus imp = crossImage(61, 9);
+		final ImageParser3D fresh = new ImageParser3D(imp, context);
+		setup(fresh, 30, 4);
+		fresh.parse();
+		final ImageParser3D parser = new ImageParser3D(imp, context);
+		setup(parser, 30, 4);
+		assertParsesAfterTermination(parser, fresh.getProfile());
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RingGroups}.
+ *
+ * @author Tiago Ferreira
+ */
+public class RingGroupsTest {
+
+	private static final int MAX_RADIUS = 40;
+	private static final int SIZE = 2 * MAX_RADIUS + 3;
+	private static final int C = SIZE / 2;
+
+	/* Random foreground, crossed by thick diagonals producing stair spikes */
+	private static boolean[][] syntheticImage(final double density, final Random random) {
+		final boolean[][] image = new boolean[SIZE][SIZE];
+		for (int x = 0; x < SIZE; x++) {
+			for (int y = 0; y < SIZE; y++)
+				image[x][y] = random.nextDouble() < density;
+		}
+		for (int i = 0; i < SIZE - 1; i++) {
+			image[i][i] = image[i + 1][i] = true;
+			image[SIZE - 1 - i][i] = image[SIZE - 2 - i][i] = true;
+		}
+		return image;
+	}
+
+	private static RingGroups.PixelTest test(final boolean[][] image) {
+		return (x, y) -> x >= 0 && y >= 0 && x < SIZE && y < SIZE && image[x][y];
+	}
+
+	/* Foreground circumference points, in ring order */
+	private static int[][] ring(final boolean[][] image, final int radius) {
+		final CircleOffsets offsets = CircleOffsets.get(radius);
+		final RingGroups.PixelTest test = test(image);
+		final List<int[]> points = new ArrayList<>();
+		for (int i = 0; i < offsets.size(); i++) {
+			final int x = C + offsets.dx(i), y = C + offsets.dy(i);
+			if (test.foreground(x, y))
+				points.add(new int[] { x, y });
+		}
+		return points.toArray(new int[0][]);
+	}
+
+	/*
+	 * Reference O(n^2) implementation, as formerly used by ImageParser2D: Any
+	 * two points within a chessboard distance of 1 belong to the same group,
+	 * and single-point groups at the corner of a thick diagonal are ignored
+	 */
+	private static int pairwiseCount(final int[][] points, final boolean suppressSpikes,
+			final RingGroups.PixelTest test) {
+		final int n = points.length;
+		final int[] group = new int[n];
+		for (int i = 0; i < n; i++)
+			group[i] = i;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				final int d = Math.max(Math.abs(points[i][0] - points[j][0]), Math.abs(points[i][1] - points[j][1]));
+				if (d <= 1 && group[i] != group[j]) {
+					final int target = group[j];
+					for (int k = 0; k < n; k++)
+						if (group[k] == target)
+							group[k] = group[i];
+				}
+			}
+		}
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (group[i] != i)
+				continue;
+			boolean single = true;
+			for (int j = 0; j < n && single; j++)
+				single = j == i || group[j] != i;
+			if (suppressSpikes && single && isStairSpike(points[i][0], points[i][1], test))
+				continue;
+			count++;
+		}
+		return count;
+	}
+
+	private static boolean isStairSpike(final int x, final int y, final RingGroups.PixelTest test) {
+		final int[][] neighbors = { { x - 1, y + 1 }, { x, y + 1 }, { x + 1, y + 1 }, { x - 1, y }, { x + 1, y },
+				{ x - 1, y - 1 }, { x, y - 1 }, { x + 1, y - 1 } };
+		final boolean[] px = new boolean[8];
+		for (int i = 0; i < 8; i++)
+			px[i] = test.foreground(neighbors[i][0], neighbors[i][1]);
+		return (px[0] && px[1] && px[3] && !px[4] && !px[6] && !px[7])
+				|| (px[1] && px[2] && px[4] && !px[3] && !px[5] && !px[6])
+				|| (px[4] && px[6] && px[7] && !px[0] && !px[1] && !px[3])
+				|| (px[3] && px[5] && px[6] && !px[1] && !px[2] && !px[4]);
+	}
+
+	private static void assertMatchesPairwiseGrouping(final boolean suppressSpikes) {
+		final Random random = new Random(42);
+		for (final double density : new double[] { 0.05, 0.2, 0.5, 0.8 }) {
+			for (int trial = 0; trial < 5; trial++) {
+				final boolean[][] image = syntheticImage(density, random);
+				final RingGroups.PixelTest test = test(image);
+				for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+					final int[][] points = ring(image, radius);
+					assertEquals("density " + density + ", radius " + radius,
+							pairwiseCount(points, suppressSpikes, test),
+							RingGroups.representatives(points, suppressSpikes, test).length);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesPairwiseGrouping() {
+		assertMatchesPairwiseGrouping(false);
+	}
+
+	@Test
+	public void testMatchesPairwiseGroupingWithSpikeSuppression() {
+		assertMatchesPairwiseGrouping(true);
+	}
+
+	@Test
+	public void testGroupsWrapAroundFirstPoint() {
+		final int[][] points = { { 0, 0 }, { 1, 0 }, { 5, 5 }, { 0, 1 } };
+		assertEquals(2, RingGroups.representatives(points, false, (x, y) -> false).length);
+	}
+
+}
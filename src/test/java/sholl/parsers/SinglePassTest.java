@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import sholl.Profile;
+import sholl.ProfileProperties;
+
+/**
+ * Tests that the single-pass engine of {@link ImageParser3D} retrieves the
+ * same profiles as the shell-by-shell engine.
+ *
+ * @author Tiago Ferreira
+ */
+public class SinglePassTest {
+
+	private static final int SIZE = 64, DEPTH = 21;
+	private static final int XC = 30, YC = 33, ZC = 10;
+
+	private Context context;
+	private ImagePlus imp;
+
+	@Before
+	public void setUp() {
+		context = new Context(StatusService.class, ThreadService.class);
+		imp = arbor();
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/*
+	 * Anisotropic stack with branches radiating in all directions from the
+	 * center, some of them forking, sprinkled with isolated voxels
+	 */
+	private static ImagePlus arbor() {
+		final ImageStack stack = new ImageStack(SIZE, SIZE);
+		final ByteProcessor[] slices = new ByteProcessor[DEPTH];
+		for (int z = 0; z < DEPTH; z++) {
+			slices[z] = new ByteProcessor(SIZE, SIZE);
+			stack.addSlice("", slices[z]);
+		}
+		final Random random = new Random(42);
+		for (int b = 0; b < 12; b++) {
+			final double theta = 2 * Math.PI * b / 12;
+			final double dz = (b % 3 - 1) * 0.3;
+			final int length = 20 + random.nextInt(14);
+			for (int t = 0; t < length; t++) {
+				final int x = (int) Math.round(XC + t * Math.cos(theta));
+				final int y = (int) Math.round(YC + t * Math.sin(theta));
+				final int z = (int) Math.round(ZC + t * dz);
+				set(slices, x, y, z);
+				if (b % 4 == 0 && t > length / 2) // fork
+					set(slices, x + (t - length / 2), y, z);
+			}
+		}
+		for (int i = 0; i < 300; i++)
+			set(slices, random.nextInt(SIZE), random.nextInt(SIZE), random.nextInt(DEPTH));
+		final ImagePlus imp = new ImagePlus("arbor", stack);
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.5;
+		cal.pixelHeight = 0.5;
+		cal.pixelDepth = 1.5;
+		return imp;
+	}
+
+	private static void set(final ByteProcessor[] slices, final int x, final int y, final int z) {
+		if (x >= 0 && x < SIZE && y >= 0 && y < SIZE && z >= 0 && z < DEPTH)
+			slices[z].set(x, y, 255);
+	}
+
+	private Profile parse(final boolean singlePass, final boolean skipSingleVoxels, final String hemiShells) {
+		final ImageParser3D parser = new ImageParser3D(imp, context);
+		parser.setCenterPx(XC, YC, ZC);
+		parser.setRadii(0.5, 0.5, 20);
+		parser.setHemiShells(hemiShells);
+		parser.setThreshold(1, 255);
+		parser.setSkipSingleVoxels(skipSingleVoxels);
+		parser.setSinglePass(singlePass);
+		parser.parse();
+		return parser.getProfile();
+	}
+
+	private void assertSameProfiles(final boolean skipSingleVoxels, final String hemiShells) {
+		final Profile singlePass = parse(true, skipSingleVoxels, hemiShells);
+		final Profile shellByShell = parse(false, skipSingleVoxels, hemiShells);
+		assertTrue(shellByShell.size() > 0);
+		assertArrayEquals(shellByShell.radiiAsArray(), singlePass.radiiAsArray(), 0);
+		assertArrayEquals(shellByShell.countsAsArray(), singlePass.countsAsArray(), 0);
+	}
+
+	@Test
+	public void testFullShells() {
+		assertSameProfiles(false, ProfileProperties.HEMI_NONE);
+	}
+
+	@Test
+	public void testFullShellsSkippingSingleVoxels() {
+		assertSameProfiles(true, ProfileProperties.HEMI_NONE);
+	}
+
+	@Test
+	public void testHemiShells() {
+		for (final String hemiShells : new String[] { ProfileProperties.HEMI_NORTH, ProfileProperties.HEMI_SOUTH,
+				ProfileProperties.HEMI_WEST, ProfileProperties.HEMI_EAST })
+			assertSameProfiles(false, hemiShells);
+	}
+
+	@Test
+	public void testHemiShellsSkippingSingleVoxels() {
+		for (final String hemiShells : new String[] { ProfileProperties.HEMI_NORTH, ProfileProperties.HEMI_SOUTH,
+				ProfileProperties.HEMI_WEST, ProfileProperties.HEMI_EAST })
+			assertSameProfiles(true, hemiShells);
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import sholl.Profile;
+import sholl.ProfileProperties;
+
+/**
+ * Tests that {@link TiledImageParser2D} retrieves the profiles of
+ * {@link ImageParser2D}, irrespective of tile size.
+ *
+ * @author Tiago Ferreira
+ */
+public class TiledImageParser2DTest {
+
+	private static final int WIDTH = 203, HEIGHT = 157;
+	private static final int XC = 97, YC = 81;
+
+	/* tile sizes, most of which do not divide the image evenly */
+	private static final int[][] TILE_SIZES = { { 1, 1 }, { 16, 16 }, { 50, 33 }, { 64, 20 }, { 7, HEIGHT },
+			{ WIDTH, 13 }, { WIDTH, HEIGHT } };
+
+	private Context context;
+	private byte[] pixels;
+
+	@Before
+	public void setUp() {
+		context = new Context(StatusService.class, ThreadService.class);
+		pixels = arbor();
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/*
+	 * Branches radiating from the center at several angles (thus crossing tile
+	 * borders at every tile size), some of them thick or forking, sprinkled
+	 * with isolated pixels
+	 */
+	private static byte[] arbor() {
+		final byte[] pixels = new byte[WIDTH * HEIGHT];
+		final Random random = new Random(7);
+		for (int b = 0; b < 9; b++) {
+			final double theta = 2 * Math.PI * b / 9 + 0.1;
+			final int thickness = 1 + b % 3;
+			for (int t = 0; t < 90; t++) {
+				final int x = (int) Math.round(XC + t * Math.cos(theta));
+				final int y = (int) Math.round(YC + t * Math.sin(theta));
+				for (int dx = 0; dx < thickness; dx++)
+					for (int dy = 0; dy < thickness; dy++)
+						set(pixels, x + dx, y + dy);
+				if (b % 2 == 0 && t > 40) // fork
+					set(pixels, x + (t - 40), y - (t - 40) / 2);
+			}
+		}
+		for (int i = 0; i < 400; i++)
+			set(pixels, random.nextInt(WIDTH), random.nextInt(HEIGHT));
+		return pixels;
+	}
+
+	private static void set(final byte[] pixels, final int x, final int y) {
+		if (x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT)
+			pixels[y * WIDTH + x] = (byte) 255;
+	}
+
+	/* Serves the pixels of the image as tiles of the specified size */
+	private TileSource source(final int tileWidth, final int tileHeight) {
+		return new TileSource() {
+
+			@Override
+			public int getWidth() {
+				return WIDTH;
+			}
+
+			@Override
+			public int getHeight() {
+				return HEIGHT;
+			}
+
+			@Override
+			public int getTileWidth() {
+				return tileWidth;
+			}
+
+			@Override
+			public int getTileHeight() {
+				return tileHeight;
+			}
+
+			@Override
+			public Object getTile(final int tileX, final int tileY) {
+				final int x0 = tileX * tileWidth, y0 = tileY * tileHeight;
+				final int w = Math.min(tileWidth, WIDTH - x0), h = Math.min(tileHeight, HEIGHT - y0);
+				final byte[] tile = new byte[w * h];
+				for (int y = 0; y < h; y++)
+					System.arraycopy(pixels, (y0 + y) * WIDTH + x0, tile, y * w, w);
+				return tile;
+			}
+		};
+	}
+
+	private Profile untiledProfile() {
+		final ImageParser2D parser = new ImageParser2D(
+				new ImagePlus("arbor", new ByteProcessor(WIDTH, HEIGHT, pixels)), context);
+		parser.setCenterPx(XC, YC);
+		parser.setRadii(1, 1, 120);
+		parser.setHemiShells(ProfileProperties.HEMI_NONE);
+		parser.setThreshold(1, 255);
+		parser.parse();
+		return parser.getProfile();
+	}
+
+	private Profile tiledProfile(final int tileWidth, final int tileHeight, final int nThreads) {
+		final TiledImageParser2D parser = new TiledImageParser2D(source(tileWidth, tileHeight));
+		parser.setCenterPx(XC, YC);
+		parser.setRadii(1, 1, 120);
+		parser.setThreshold(1, 255);
+		parser.setThreads(nThreads);
+		parser.parse();
+		return parser.getProfile();
+	}
+
+	@Test
+	public void testTileSizeDoesNotAffectProfile() {
+		final Profile expected = untiledProfile();
+		assertTrue(expected.size() > 0);
+		for (final int[] size : TILE_SIZES) {
+			for (final int nThreads : new int[] { 1, 4 }) {
+				final Profile actual = tiledProfile(size[0], size[1], nThreads);
+				assertArrayEquals(expected.radiiAsArray(), actual.radiiAsArray(), 0);
+				assertArrayEquals(size[0] + "x" + size[1], expected.countsAsArray(), actual.countsAsArray(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testSmallTileCache() {
+		final Profile expected = untiledProfile();
+		final TiledImageParser2D parser = new TiledImageParser2D(source(16, 16));
+		parser.setCenterPx(XC, YC);
+		parser.setRadii(1, 1, 120);
+		parser.setThreshold(1, 255);
+		parser.setTileCacheSize(0); // tiles are evicted as soon as possible
+		parser.parse();
+		assertArrayEquals(expected.countsAsArray(), parser.getProfile().countsAsArray(), 0);
+	}
+
+}
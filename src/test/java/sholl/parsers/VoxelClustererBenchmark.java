@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import java.util.Random;
+
+/**
+ * Benchmarks {@link VoxelClusterer} on synthetic shells of increasing voxel
+ * population against pairwise comparison (whose cost grows quadratically).
+ * Pairwise timings are skipped for large shells.
+ *
+ * @author Tiago Ferreira
+ */
+public class VoxelClustererBenchmark {
+
+	public static void main(final String... args) {
+		final Random random = new Random(42);
+		System.out.println("n.voxels\tclusters\tunion-find (ms)\tns/voxel\tpairwise (ms)");
+		for (int radius = 8; radius <= 512; radius *= 2) {
+			final VoxelList shell = syntheticShell(radius, random);
+			final int n = shell.size();
+			// warm up, then keep best of 5 runs
+			long best = Long.MAX_VALUE;
+			int nClusters = 0;
+			for (int run = 0; run < 6; run++) {
+				final long start = System.nanoTime();
+				nClusters = VoxelClusterer.representatives(shell).length;
+				if (run > 0)
+					best = Math.min(best, System.nanoTime() - start);
+			}
+			String pairwise = "-";
+			if (n <= 20000) {
+				final long start = System.nanoTime();
+				final int expected = pairwiseCount(shell);
+				pairwise = String.format("%.1f", (System.nanoTime() - start) / 1e6);
+				if (expected != nClusters)
+					pairwise += " (mismatch: " + expected + " clusters)";
+			}
+			System.out.println(String.format("%d\t%d\t%.2f\t%.1f\t%s", n, nClusters, best / 1e6,
+					(double) best / n, pairwise));
+		}
+	}
+
+	/* Voxels of a spherical surface, sparsely occupied by random 'neurites' */
+	static VoxelList syntheticShell(final int radius, final Random random) {
+		final VoxelList shell = new VoxelList();
+		final int c = radius + 1;
+		for (int z = 0; z <= 2 * c; z++) {
+			for (int y = 0; y <= 2 * c; y++) {
+				for (int x = 0; x <= 2 * c; x++) {
+					final double d = Math.sqrt((x - c) * (x - c) + (y - c) * (y - c) + (z - c) * (z - c));
+					if (Math.abs(d - radius) < 1 && random.nextDouble() < 0.3)
+						shell.add(x, y, z);
+				}
+			}
+		}
+		return shell;
+	}
+
+	/* Reference O(n^2) implementation: number of 26-connected groups */
+	static int pairwiseCount(final VoxelList voxels) {
+		final int n = voxels.size();
+		final int[] group = new int[n];
+		for (int i = 0; i < n; i++)
+			group[i] = i;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				final int dxy = Math.max(Math.abs(voxels.x(i) - voxels.x(j)), Math.abs(voxels.y(i) - voxels.y(j)));
+				final int dz = Math.abs(voxels.z(i) - voxels.z(j));
+				if (Math.max(dxy, dz) <= 1 && group[i] != group[j]) {
+					final int target = group[j];
+					for (int k = 0; k < n; k++)
+						if (group[k] == target)
+							group[k] = group[i];
+				}
+			}
+		}
+		int count = 0;
+		for (int i = 0; i < n; i++)
+			if (group[i] == i)
+				count++;
+		return count;
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link VoxelClusterer}.
+ *
+ * @author Tiago Ferreira
+ */
+public class VoxelClustererTest {
+
+	@Test
+	public void testMatchesPairwiseClustering() {
+		final Random random = new Random(42);
+		for (int radius = 2; radius <= 32; radius *= 2) {
+			final VoxelList shell = VoxelClustererBenchmark.syntheticShell(radius, random);
+			assertEquals("radius " + radius, VoxelClustererBenchmark.pairwiseCount(shell),
+					VoxelClusterer.representatives(shell).length);
+		}
+	}
+
+	@Test
+	public void testDiagonalNeighborsAreConnected() {
+		final VoxelList voxels = new VoxelList();
+		voxels.add(5, 5, 5);
+		voxels.add(6, 6, 6);
+		voxels.add(7, 5, 7);
+		voxels.add(9, 5, 5);
+		assertEquals(2, VoxelClusterer.representatives(voxels).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOversizedCoordinates() {
+		final VoxelList voxels = new VoxelList();
+		voxels.add(0, 0, 0);
+		voxels.add(1 << 21, 0, 0);
+		VoxelClusterer.representatives(voxels);
+	}
+
+}
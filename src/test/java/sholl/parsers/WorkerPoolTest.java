@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.parsers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link WorkerPool}: Worker failures must surface the same way
+ * whether workers run on their own threads or on an executor.
+ *
+ * @author Tiago Ferreira
+ */
+public class WorkerPoolTest {
+
+	private static void assertFailureRethrown(final ExecutorService executor) {
+		final AtomicBoolean aborted = new AtomicBoolean();
+		final WorkerPool pool = new WorkerPool(null, executor, 4, () -> aborted.set(true));
+		try {
+			pool.run(4, worker -> {
+				if (worker == 2)
+					throw new IllegalStateException("worker failed");
+			});
+			fail("Worker failure was not rethrown");
+		} catch (final IllegalStateException exc) {
+			assertEquals("worker failed", exc.getMessage());
+		}
+		assertTrue(aborted.get());
+	}
+
+	@Test
+	public void testFailureOnThreadsIsRethrown() {
+		assertFailureRethrown(null);
+	}
+
+	@Test
+	public void testFailureOnExecutorIsRethrown() {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			assertFailureRethrown(executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testAllWorkersRun() {
+		final AtomicInteger sum = new AtomicInteger();
+		new WorkerPool(null, null, 8, () -> {}).run(8, worker -> sum.addAndGet(worker + 1));
+		assertEquals(36, sum.get());
+	}
+
+}
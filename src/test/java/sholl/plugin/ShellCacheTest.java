@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * Sholl Analysis plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2020 Tiago Ferreira.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sholl.plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import sholl.Profile;
+import sholl.ProfileProperties;
+import sholl.parsers.ImageParser;
+import sholl.parsers.ImageParser3D;
+
+/**
+ * Tests for {@link ShellCache}: Runs retrieving shells from the cache must
+ * match fresh parses of the same image.
+ *
+ * @author Tiago Ferreira
+ */
+public class ShellCacheTest {
+
+	private static final String PARAMETERS = ShellCache.key("test");
+	private Context context;
+
+	@Before
+	public void setUp() {
+		context = new Context(StatusService.class, ThreadService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/*
+	 * Anisotropic stack with 3-pixel thick branches running along X and Y
+	 * from the center to the image border
+	 */
+	private static ImagePlus anisotropicImage() {
+		final ImageStack stack = new ImageStack(201, 201);
+		for (int z = 0; z < 21; z++) {
+			final ByteProcessor ip = new ByteProcessor(201, 201);
+			if (Math.abs(z - 10) <= 1) {
+				for (int i = 100; i < 201; i++) {
+					for (int t = -1; t <= 1; t++) {
+						ip.set(i, 100 + t, 255);
+						ip.set(100 + t, i, 255);
+					}
+				}
+			}
+			stack.addSlice("", ip);
+		}
+		final ImagePlus imp = new ImagePlus("anisotropic", stack);
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.25;
+		cal.pixelHeight = 0.25;
+		cal.pixelDepth = 2;
+		return imp;
+	}
+
+	private ImageParser3D parser(final ImagePlus imp, final double endRadius) {
+		final ImageParser3D parser = new ImageParser3D(imp, context);
+		parser.setCenterPx(100, 100, 10);
+		parser.setRadii(1, 1, endRadius);
+		parser.setHemiShells(ProfileProperties.HEMI_NONE);
+		parser.setThreshold(1, 255);
+		return parser;
+	}
+
+	private Profile freshParse(final ImagePlus imp, final double endRadius) {
+		final ImageParser3D parser = parser(imp, endRadius);
+		parser.parse();
+		return parser.getProfile();
+	}
+
+	private Profile cachedParse(final ShellCache cache, final ImagePlus imp, final double endRadius) {
+		final ImageParser3D parser = parser(imp, endRadius);
+		cache.parse(parser, PARAMETERS, parser::parse);
+		return parser.getProfile();
+	}
+
+	private static void assertSameProfile(final Profile expected, final Profile actual) {
+		assertArrayEquals(expected.radiiAsArray(), actual.radiiAsArray(), 0);
+		assertArrayEquals(expected.countsAsArray(), actual.countsAsArray(), 0);
+	}
+
+	@Test
+	public void testLargerRangeMatchesFreshParse() {
+		final ImagePlus imp = anisotropicImage();
+		// bounds of the shorter range clip its shells along X and Y
+		assertFalse(Arrays.equals(parser(imp, 10).getBounds(), parser(imp, 20).getBounds()));
+		final ShellCache cache = new ShellCache();
+		assertSameProfile(freshParse(imp, 10), cachedParse(cache, imp, 10));
+		assertSameProfile(freshParse(imp, 20), cachedParse(cache, imp, 20));
+		assertSameProfile(freshParse(imp, 10), cachedParse(cache, imp, 10));
+	}
+
+	@Test
+	public void testRepeatedRunReusesShells() {
+		final ImagePlus imp = anisotropicImage();
+		final ShellCache cache = new ShellCache();
+		final Profile first = cachedParse(cache, imp, 20);
+		final ImageParser3D parser = parser(imp, 20);
+		assertEquals(20, cache.parse(parser, PARAMETERS, parser::parse));
+		assertSameProfile(first, parser.getProfile());
+	}
+
+	@Test
+	public void testEditedImageIsParsedAnew() {
+		final ImagePlus imp = anisotropicImage();
+		final ShellCache cache = new ShellCache();
+		cachedParse(cache, imp, 20);
+		// erase the branch along X in place
+		for (int z = 9; z <= 11; z++) {
+			final ByteProcessor ip = (ByteProcessor) imp.getStack().getProcessor(z + 1);
+			for (int x = 102; x < 201; x++)
+				for (int y = 99; y <= 101; y++)
+					ip.set(x, y, 0);
+		}
+		ImageParser.imageChanged(imp);
+		assertSameProfile(freshParse(imp, 20), cachedParse(cache, imp, 20));
+	}
+
+}